@@ -0,0 +1,209 @@
+package org.jf.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the MUTF-8 decoding and encoding in {@link Utf8Utils} with the char-by-char code it replaced, over every
+ * string of a real dex file. Each benchmark handles the whole string table once.
+ *
+ * This directory is not a source folder, since the project has no JMH dependency. To run it, get jmh-core,
+ * jmh-generator-annprocess and their dependencies (jopt-simple, commons-math3), compile the project into out/, and
+ * from the project root:
+ *
+ * <pre>
+ * javac -cp out:jmh/* -d bench benchmark/org/jf/util/Utf8UtilsBenchmark.java
+ * java -cp bench:out:jmh/* org.openjdk.jmh.Main Utf8UtilsBenchmark -p dexFile=path/to/classes.dex
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8UtilsBenchmark {
+    @Param("classes.dex")
+    public String dexFile;
+
+    private byte[] data;
+    private ByteBuffer directData;
+    private int[] offsets;
+    private int[] lengths;
+    private String[] strings;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Files.readAllBytes(Paths.get(dexFile));
+        directData = ByteBuffer.allocateDirect(data.length);
+        directData.put(data);
+
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int count = buf.getInt(0x38);
+        int stringIdsOffset = buf.getInt(0x3c);
+        offsets = new int[count];
+        lengths = new int[count];
+        strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int offset = buf.getInt(stringIdsOffset + i * 4);
+            // the utf16 length is a uleb128
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = data[offset++] & 0xff;
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            offsets[i] = offset;
+            lengths[i] = length;
+            strings[i] = Utf8Utils.utf8BytesWithUtf16LengthToString(data, offset, length);
+        }
+    }
+
+    @Benchmark
+    public void decodeArray(Blackhole blackhole) {
+        for (int i = 0; i < offsets.length; i++) {
+            blackhole.consume(Utf8Utils.utf8BytesWithUtf16LengthToString(data, offsets[i], lengths[i], null));
+        }
+    }
+
+    @Benchmark
+    public void decodeDirectBuffer(Blackhole blackhole) {
+        for (int i = 0; i < offsets.length; i++) {
+            blackhole.consume(Utf8Utils.utf8BytesWithUtf16LengthToString(directData, offsets[i], lengths[i], null));
+        }
+    }
+
+    @Benchmark
+    public void decodeArrayBaseline(Blackhole blackhole) {
+        for (int i = 0; i < offsets.length; i++) {
+            blackhole.consume(baselineDecode(data, offsets[i], lengths[i]));
+        }
+    }
+
+    @Benchmark
+    public void decodeDirectBufferBaseline(Blackhole blackhole) {
+        for (int i = 0; i < offsets.length; i++) {
+            blackhole.consume(baselineDecode(directData, offsets[i], lengths[i]));
+        }
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (String string: strings) {
+            blackhole.consume(Utf8Utils.stringToUtf8Bytes(string));
+        }
+    }
+
+    @Benchmark
+    public void encodeBaseline(Blackhole blackhole) {
+        for (String string: strings) {
+            blackhole.consume(baselineEncode(string));
+        }
+    }
+
+    private static final ThreadLocal<char[]> localBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[256];
+        }
+    };
+
+    // The decoder before the ASCII fast path, without the checks for invalid bytes
+    private static String baselineDecode(byte[] bytes, int start, int utf16Length) {
+        char[] chars = localBuffer.get();
+        if (chars.length < utf16Length) {
+            chars = new char[utf16Length];
+            localBuffer.set(chars);
+        }
+        int outAt = 0;
+        for (int at = start; utf16Length > 0; utf16Length--) {
+            int v0 = bytes[at] & 0xFF;
+            switch (v0 >> 4) {
+                case 0x0c:
+                case 0x0d:
+                    chars[outAt++] = (char) (((v0 & 0x1f) << 6) | (bytes[at + 1] & 0x3f));
+                    at += 2;
+                    break;
+                case 0x0e:
+                    chars[outAt++] = (char) (((v0 & 0x0f) << 12) | ((bytes[at + 1] & 0x3f) << 6) |
+                            (bytes[at + 2] & 0x3f));
+                    at += 3;
+                    break;
+                default:
+                    chars[outAt++] = (char) v0;
+                    at++;
+                    break;
+            }
+        }
+        return new String(chars, 0, outAt);
+    }
+
+    private static String baselineDecode(ByteBuffer bytes, int start, int utf16Length) {
+        char[] chars = localBuffer.get();
+        if (chars.length < utf16Length) {
+            chars = new char[utf16Length];
+            localBuffer.set(chars);
+        }
+        int outAt = 0;
+        for (int at = start; utf16Length > 0; utf16Length--) {
+            int v0 = bytes.get(at) & 0xFF;
+            if (v0 < 0x80) {
+                chars[outAt++] = (char) v0;
+                at++;
+            } else if ((v0 >> 5) == 0x06) {
+                chars[outAt++] = (char) (((v0 & 0x1f) << 6) | (bytes.get(at + 1) & 0x3f));
+                at += 2;
+            } else {
+                chars[outAt++] = (char) (((v0 & 0x0f) << 12) | ((bytes.get(at + 1) & 0x3f) << 6) |
+                        (bytes.get(at + 2) & 0x3f));
+                at += 3;
+            }
+        }
+        return new String(chars, 0, outAt);
+    }
+
+    // The encoder before the ASCII fast path
+    private static byte[] baselineEncode(String string) {
+        int len = string.length();
+        byte[] bytes = new byte[len * 3];
+        int outAt = 0;
+        for (int i = 0; i < len; i++) {
+            char c = string.charAt(i);
+            if ((c != 0) && (c < 0x80)) {
+                bytes[outAt] = (byte) c;
+                outAt++;
+            } else if (c < 0x800) {
+                bytes[outAt] = (byte) (((c >> 6) & 0x1f) | 0xc0);
+                bytes[outAt + 1] = (byte) ((c & 0x3f) | 0x80);
+                outAt += 2;
+            } else {
+                bytes[outAt] = (byte) (((c >> 12) & 0x0f) | 0xe0);
+                bytes[outAt + 1] = (byte) (((c >> 6) & 0x3f) | 0x80);
+                bytes[outAt + 2] = (byte) ((c & 0x3f) | 0x80);
+                outAt += 3;
+            }
+        }
+        byte[] result = new byte[outAt];
+        System.arraycopy(bytes, 0, result, 0, outAt);
+        return result;
+    }
+}
@@ -0,0 +1,46 @@
+#!/bin/sh
+# 检查可重现输出：按 config.txt 开启 zip.reproducible，在不同时区下各用一个新的 JVM
+# 处理同一个 APK，比较输出的 SHA-256。
+#
+# 用法：./check-reproducible.sh [时区...]
+# 默认使用 nkstool.jar，修改源码后需要重新生成它，或者用 NKSTOOL 指定其它命令，如
+# NKSTOOL="java -cp $PWD/out cc.binmt.signature.NKillSignatureTool"（工具在临时目录中运行，路径要用绝对路径）
+
+set -e
+
+ROOT=$(cd "$(dirname "$0")" && pwd)
+TOOL=${NKSTOOL:-"java -jar $ROOT/nkstool.jar"}
+[ $# -gt 0 ] || set -- UTC Asia/Shanghai America/New_York
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+# 相对路径改为相对项目根目录，输出写到各自的目录中
+sed -e "s#^apk\.src=\([^/]\)#apk.src=$ROOT/\1#" \
+    -e "s#^apk\.signed=\([^/]\)#apk.signed=$ROOT/\1#" \
+    -e "s#^sign\.file=\([^/]\)#sign.file=$ROOT/\1#" \
+    -e 's#^apk\.out=.*#apk.out=out.apk#' \
+    -e '/^zip\.reproducible=/d' \
+    "$ROOT/config.txt" > "$WORK/config.txt"
+echo "zip.reproducible=true" >> "$WORK/config.txt"
+
+FIRST=
+N=0
+for TZ_NAME in "$@"; do
+    # zip 中的时间精确到 2 秒，每次间隔 2 秒，没有固定时间的输出就不会碰巧一致
+    [ -z "$FIRST" ] || sleep 2
+    N=$((N + 1))
+    DIR="$WORK/$N"
+    mkdir "$DIR"
+    cp "$WORK/config.txt" "$DIR/"
+    (cd "$DIR" && TZ=$TZ_NAME $TOOL > log.txt 2>&1) || { cat "$DIR/log.txt"; exit 1; }
+    HASH=$(sha256sum "$DIR/out.apk" | cut -d ' ' -f 1)
+    echo "$TZ_NAME  $HASH"
+    if [ -z "$FIRST" ]; then
+        FIRST=$HASH
+    elif [ "$HASH" != "$FIRST" ]; then
+        echo "输出不一致"
+        exit 1
+    fi
+done
+echo "输出一致"
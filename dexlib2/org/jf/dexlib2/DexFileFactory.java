@@ -34,7 +34,6 @@ package org.jf.dexlib2;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.io.ByteStreams;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.NotADexFile;
 import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
@@ -52,6 +51,8 @@ import org.jf.util.ExceptionWithContext;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 public final class DexFileFactory {
@@ -98,37 +99,36 @@ public final class DexFileFactory {
                 // just eat it
             }
 
+            // Note: DexBackedDexFile.fromInputStream will reset inputStream back to the same position, if it fails
             try {
                 return DexBackedOdexFile.fromInputStream(opcodes, inputStream);
             } catch (DexBackedOdexFile.NotAnOdexFile ex) {
                 // just eat it
             }
+        } finally {
+            inputStream.close();
+        }
 
-            // Note: DexBackedDexFile.fromInputStream and DexBackedOdexFile.fromInputStream will reset inputStream
-            // back to the same position, if they fails
+        // an oat file is mapped from the file, rather than read from the stream
+        OatFile oatFile = null;
+        try {
+            oatFile = OatFile.fromFile(file, new FilenameVdexProvider(file));
+        } catch (NotAnOatFileException ex) {
+            // just eat it
+        }
 
-            OatFile oatFile = null;
-            try {
-                oatFile = OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
-            } catch (NotAnOatFileException ex) {
-                // just eat it
+        if (oatFile != null) {
+            if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
+                throw new UnsupportedOatVersionException(oatFile);
             }
 
-            if (oatFile != null) {
-                if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
-                    throw new UnsupportedOatVersionException(oatFile);
-                }
-
-                List<OatDexFile> oatDexFiles = oatFile.getDexFiles();
-
-                if (oatDexFiles.size() == 0) {
-                    throw new DexFileNotFoundException("Oat file %s contains no dex files", file.getName());
-                }
+            List<OatDexFile> oatDexFiles = oatFile.getDexFiles();
 
-                return oatDexFiles.get(0);
+            if (oatDexFiles.size() == 0) {
+                throw new DexFileNotFoundException("Oat file %s contains no dex files", file.getName());
             }
-        } finally {
-            inputStream.close();
+
+            return oatDexFiles.get(0);
         }
 
         throw new UnsupportedFileTypeException("%s is not an apk, dex, odex or oat file.", file.getPath());
@@ -187,30 +187,25 @@ public final class DexFileFactory {
             // eat it and continue
         }
 
-        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        OatFile oatFile = null;
         try {
-            OatFile oatFile = null;
-            try {
-                oatFile = OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
-            } catch (NotAnOatFileException ex) {
-                // just eat it
-            }
-
-            if (oatFile != null) {
-                if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
-                    throw new UnsupportedOatVersionException(oatFile);
-                }
+            oatFile = OatFile.fromFile(file, new FilenameVdexProvider(file));
+        } catch (NotAnOatFileException ex) {
+            // just eat it
+        }
 
-                List<OatDexFile> oatDexFiles = oatFile.getDexFiles();
+        if (oatFile != null) {
+            if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
+                throw new UnsupportedOatVersionException(oatFile);
+            }
 
-                if (oatDexFiles.size() == 0) {
-                    throw new DexFileNotFoundException("Oat file %s contains no dex files", file.getName());
-                }
+            List<OatDexFile> oatDexFiles = oatFile.getDexFiles();
 
-                return new DexEntryFinder(file.getPath(), oatFile).findEntry(dexEntry, exactMatch);
+            if (oatDexFiles.size() == 0) {
+                throw new DexFileNotFoundException("Oat file %s contains no dex files", file.getName());
             }
-        } finally {
-            inputStream.close();
+
+            return new DexEntryFinder(file.getPath(), oatFile).findEntry(dexEntry, exactMatch);
         }
 
         throw new UnsupportedFileTypeException("%s is not an apk or oat file.", file.getPath());
@@ -248,32 +243,31 @@ public final class DexFileFactory {
                 // just eat it
             }
 
+            // Note: DexBackedDexFile.fromInputStream will reset inputStream back to the same position, if it fails
             try {
                 DexBackedOdexFile odexFile = DexBackedOdexFile.fromInputStream(opcodes, inputStream);
                 return new SingletonMultiDexContainer(file.getPath(), odexFile);
             } catch (DexBackedOdexFile.NotAnOdexFile ex) {
                 // just eat it
             }
+        } finally {
+            inputStream.close();
+        }
 
-            // Note: DexBackedDexFile.fromInputStream and DexBackedOdexFile.fromInputStream will reset inputStream
-            // back to the same position, if they fails
-
-            OatFile oatFile = null;
-            try {
-                oatFile = OatFile.fromInputStream(inputStream, new FilenameVdexProvider(file));
-            } catch (NotAnOatFileException ex) {
-                // just eat it
-            }
+        // an oat file is mapped from the file, rather than read from the stream
+        OatFile oatFile = null;
+        try {
+            oatFile = OatFile.fromFile(file, new FilenameVdexProvider(file));
+        } catch (NotAnOatFileException ex) {
+            // just eat it
+        }
 
-            if (oatFile != null) {
-                // TODO: we should support loading earlier oat files, just not deodexing them
-                if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
-                    throw new UnsupportedOatVersionException(oatFile);
-                }
-                return oatFile;
+        if (oatFile != null) {
+            // TODO: we should support loading earlier oat files, just not deodexing them
+            if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
+                throw new UnsupportedOatVersionException(oatFile);
             }
-        } finally {
-            inputStream.close();
+            return oatFile;
         }
 
         throw new UnsupportedFileTypeException("%s is not an apk, dex, odex or oat file.", file.getPath());
@@ -465,7 +459,9 @@ public final class DexFileFactory {
         private final File vdexFile;
 
         @Nullable
-        private byte[] buf = null;
+        private ByteBuffer buf = null;
+        @Nullable
+        private byte[] bytes = null;
         private boolean loadedVdex = false;
 
         public FilenameVdexProvider(File oatFile) {
@@ -478,11 +474,25 @@ public final class DexFileFactory {
             vdexFile = new File(oatParent, baseName + ".vdex");
         }
 
-        @Nullable @Override public byte[] getVdex() {
+        @Nullable @Override public synchronized byte[] getVdex() {
+            ByteBuffer buf = getVdexBuffer();
+            if (buf != null && bytes == null) {
+                bytes = new byte[buf.limit()];
+                buf.get(bytes);
+            }
+            return bytes;
+        }
+
+        @Nullable @Override public synchronized ByteBuffer getVdexBuffer() {
             if (!loadedVdex) {
                 if (vdexFile.exists()) {
                     try {
-                        buf = ByteStreams.toByteArray(new FileInputStream(vdexFile));
+                        RandomAccessFile raf = new RandomAccessFile(vdexFile, "r");
+                        try {
+                            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                        } finally {
+                            raf.close();
+                        }
                     } catch (FileNotFoundException e) {
                         buf = null;
                     } catch (IOException ex) {
@@ -492,7 +502,7 @@ public final class DexFileFactory {
                 loadedVdex = true;
             }
 
-            return buf;
+            return buf == null ? null : buf.duplicate();
         }
     }
 }
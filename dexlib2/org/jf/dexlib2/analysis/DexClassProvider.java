@@ -35,6 +35,7 @@ import android.support.annotation.Nullable;
 
 import com.google.common.collect.Maps;
 
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 
@@ -42,19 +43,28 @@ import java.util.Map;
 
 public class DexClassProvider implements ClassProvider {
     private final DexFile dexFile;
-    private Map<String, ClassDef> classMap = Maps.newHashMap();
+    @Nullable private final Map<String, ClassDef> classMap;
 
     public DexClassProvider(DexFile dexFile) {
         this.dexFile = dexFile;
 
-        for (ClassDef classDef : dexFile.getClasses()) {
-            classMap.put(classDef.getType(), classDef);
+        // a dex-backed file can look classes up by itself
+        if (dexFile instanceof DexBackedDexFile) {
+            classMap = null;
+        } else {
+            classMap = Maps.newHashMap();
+            for (ClassDef classDef : dexFile.getClasses()) {
+                classMap.put(classDef.getType(), classDef);
+            }
         }
     }
 
     @Nullable
     @Override
     public ClassDef getClassDef(String type) {
+        if (classMap == null) {
+            return ((DexBackedDexFile) dexFile).getClassByType(type);
+        }
         return classMap.get(type);
     }
 }
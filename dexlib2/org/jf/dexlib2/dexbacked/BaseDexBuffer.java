@@ -32,11 +32,24 @@
 package org.jf.dexlib2.dexbacked;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.jf.util.ExceptionWithContext;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Little-endian view of a dex file, or of a file containing dex files.
+ * <p/>
+ * The data can come from a byte array, or from any {@link ByteBuffer}, such as a file or a STORED zip entry
+ * mapped with {@link java.nio.channels.FileChannel#map}. All reads go through the buffer, so a mapped file costs
+ * page cache rather than heap.
+ */
 public class BaseDexBuffer {
-    @NonNull /* package private */ final byte[] buf;
+    // The backing array, or null if the data is not in an array that can be accessed directly
+    @Nullable /* package private */ final byte[] buf;
+    @NonNull /* package private */ final ByteBuffer data;
     /* package private */ final int baseOffset;
 
     public BaseDexBuffer(@NonNull byte[] buf) {
@@ -45,16 +58,27 @@ public class BaseDexBuffer {
 
     public BaseDexBuffer(@NonNull byte[] buf, int offset) {
         this.buf = buf;
+        this.data = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        this.baseOffset = offset;
+    }
+
+    /**
+     * @param buf The data. Offset 0 of the buffer is offset 0 of the data, regardless of the buffer's position.
+     * @param offset The offset of the dex file in the buffer
+     */
+    public BaseDexBuffer(@NonNull ByteBuffer buf, int offset) {
+        this.data = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.hasArray() && buf.arrayOffset() == 0) {
+            this.buf = buf.array();
+        } else {
+            this.buf = null;
+        }
         this.baseOffset = offset;
     }
 
     public int readSmallUint(int offset) {
-        byte[] buf = this.buf;
         offset += baseOffset;
-        int result = (buf[offset] & 0xff) |
-                ((buf[offset + 1] & 0xff) << 8) |
-                ((buf[offset + 2] & 0xff) << 16) |
-                ((buf[offset + 3]) << 24);
+        int result = data.getInt(offset);
         if (result < 0) {
             throw new ExceptionWithContext("Encountered small uint that is out of range at offset 0x%x", offset);
         }
@@ -62,12 +86,8 @@ public class BaseDexBuffer {
     }
 
     public int readOptionalUint(int offset) {
-        byte[] buf = this.buf;
         offset += baseOffset;
-        int result = (buf[offset] & 0xff) |
-                ((buf[offset + 1] & 0xff) << 8) |
-                ((buf[offset + 2] & 0xff) << 16) |
-                ((buf[offset + 3]) << 24);
+        int result = data.getInt(offset);
         if (result < -1) {
             throw new ExceptionWithContext("Encountered optional uint that is out of range at offset 0x%x", offset);
         }
@@ -75,40 +95,20 @@ public class BaseDexBuffer {
     }
 
     public int readUshort(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset + 1] & 0xff) << 8);
+        return data.getShort(offset + baseOffset) & 0xffff;
     }
 
     public int readUbyte(int offset) {
-        return buf[offset + baseOffset] & 0xff;
+        return data.get(offset + baseOffset) & 0xff;
     }
 
     public long readLong(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset + 1] & 0xff) << 8) |
-                ((buf[offset + 2] & 0xff) << 16) |
-                ((buf[offset + 3] & 0xffL) << 24) |
-                ((buf[offset + 4] & 0xffL) << 32) |
-                ((buf[offset + 5] & 0xffL) << 40) |
-                ((buf[offset + 6] & 0xffL) << 48) |
-                (((long) buf[offset + 7]) << 56);
+        return data.getLong(offset + baseOffset);
     }
 
     public int readLongAsSmallUint(int offset) {
-        byte[] buf = this.buf;
         offset += baseOffset;
-        long result = (buf[offset] & 0xff) |
-                ((buf[offset + 1] & 0xff) << 8) |
-                ((buf[offset + 2] & 0xff) << 16) |
-                ((buf[offset + 3] & 0xffL) << 24) |
-                ((buf[offset + 4] & 0xffL) << 32) |
-                ((buf[offset + 5] & 0xffL) << 40) |
-                ((buf[offset + 6] & 0xffL) << 48) |
-                (((long) buf[offset + 7]) << 56);
+        long result = data.getLong(offset);
         if (result < 0 || result > Integer.MAX_VALUE) {
             throw new ExceptionWithContext("Encountered out-of-range ulong at offset 0x%x", offset);
         }
@@ -116,23 +116,34 @@ public class BaseDexBuffer {
     }
 
     public int readInt(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset + 1] & 0xff) << 8) |
-                ((buf[offset + 2] & 0xff) << 16) |
-                (buf[offset + 3] << 24);
+        return data.getInt(offset + baseOffset);
     }
 
     public int readShort(int offset) {
-        byte[] buf = this.buf;
-        offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                (buf[offset + 1] << 8);
+        return data.getShort(offset + baseOffset);
     }
 
     public int readByte(int offset) {
-        return buf[baseOffset + offset];
+        return data.get(baseOffset + offset);
+    }
+
+    /**
+     * Copies length bytes at the given offset into a new array
+     */
+    @NonNull
+    public byte[] readBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer src = data.duplicate();
+        src.position(baseOffset + offset);
+        src.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return The number of bytes from the start of the dex file to the end of the underlying data
+     */
+    public int getDataLength() {
+        return data.limit() - baseOffset;
     }
 
     @NonNull
@@ -140,9 +151,25 @@ public class BaseDexBuffer {
         return new BaseDexReader<BaseDexBuffer>(this, offset);
     }
 
+    /**
+     * @return The backing array. For data that is not in an accessible array, such as a mapped file, this is a copy
+     * of the data
+     */
     @NonNull
     protected byte[] getBuf() {
-        return buf;
+        if (buf != null) {
+            return buf;
+        }
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        return bytes;
+    }
+
+    @NonNull
+    protected ByteBuffer getData() {
+        return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
     }
 
     protected int getBaseOffset() {
@@ -36,7 +36,10 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import org.jf.dexlib2.base.reference.BaseTypeReference;
 import org.jf.dexlib2.dexbacked.raw.ClassDefItem;
+import org.jf.dexlib2.dexbacked.raw.FieldIdItem;
+import org.jf.dexlib2.dexbacked.raw.MethodIdItem;
 import org.jf.dexlib2.dexbacked.raw.TypeIdItem;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
 import org.jf.dexlib2.dexbacked.util.AnnotationsDirectory;
 import org.jf.dexlib2.dexbacked.util.FixedSizeSet;
 import org.jf.dexlib2.dexbacked.util.StaticInitialValueIterator;
@@ -46,6 +49,7 @@ import org.jf.dexlib2.iface.reference.FieldReference;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
 import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.util.CharSequenceUtils;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -70,6 +74,10 @@ public class DexBackedClassDef extends BaseTypeReference implements ClassDef {
 
     @Nullable private AnnotationsDirectory annotationsDirectory;
 
+    // The offset and the field or method index of every encoded_field and encoded_method in the class_data_item, as
+    // pairs of ints, in the order they are stored. Built on first random access.
+    @Nullable private volatile int[] memberTable;
+
     public DexBackedClassDef(@NonNull DexBackedDexFile dexFile,
                              int classDefOffset) {
         this.dexFile = dexFile;
@@ -398,41 +406,292 @@ public class DexBackedClassDef extends BaseTypeReference implements ClassDef {
         return Iterables.concat(getDirectMethods(), getVirtualMethods());
     }
 
+    public int getStaticFieldCount() {
+        return staticFieldCount;
+    }
+
+    public int getInstanceFieldCount() {
+        return instanceFieldCount;
+    }
+
+    public int getDirectMethodCount() {
+        return directMethodCount;
+    }
+
+    public int getVirtualMethodCount() {
+        return virtualMethodCount;
+    }
+
+    /**
+     * Reads the static field at the given position in the class data, without decoding the fields before it.
+     *
+     * Unlike {@link #getStaticFields()}, this does not skip duplicate fields.
+     */
+    @NonNull
+    public DexBackedField getStaticField(int index) {
+        checkMemberIndex(index, staticFieldCount);
+        int[] table = getMemberTable();
+        DexReader reader = dexFile.readerAt(table[index * 2]);
+
+        int staticInitialValuesOffset = dexFile.readSmallUint(classDefOffset + ClassDefItem.STATIC_VALUES_OFFSET);
+        StaticInitialValueIterator staticInitialValueIterator =
+                StaticInitialValueIterator.newOrEmpty(dexFile, staticInitialValuesOffset);
+        for (int i = 0; i < index; i++) {
+            staticInitialValueIterator.skipNext();
+        }
+        return new DexBackedField(reader, this, getPreviousMemberIndex(table, index, 0), staticInitialValueIterator,
+                getAnnotationsDirectory().getFieldAnnotationIterator());
+    }
+
+    /**
+     * Reads the instance field at the given position in the class data, without decoding the fields before it.
+     *
+     * Unlike {@link #getInstanceFields()}, this does not skip duplicate fields.
+     */
+    @NonNull
+    public DexBackedField getInstanceField(int index) {
+        checkMemberIndex(index, instanceFieldCount);
+        int position = staticFieldCount + index;
+        int[] table = getMemberTable();
+        DexReader reader = dexFile.readerAt(table[position * 2]);
+        return new DexBackedField(reader, this, getPreviousMemberIndex(table, position, staticFieldCount),
+                getAnnotationsDirectory().getFieldAnnotationIterator());
+    }
+
+    /**
+     * Reads the direct method at the given position in the class data, without decoding the members before it.
+     *
+     * Unlike {@link #getDirectMethods()}, this does not skip duplicate methods.
+     */
+    @NonNull
+    public DexBackedMethod getDirectMethod(int index) {
+        checkMemberIndex(index, directMethodCount);
+        return readMethod(staticFieldCount + instanceFieldCount, index);
+    }
+
+    /**
+     * Reads the virtual method at the given position in the class data, without decoding the members before it.
+     *
+     * Unlike {@link #getVirtualMethods()}, this does not skip duplicate methods.
+     */
+    @NonNull
+    public DexBackedMethod getVirtualMethod(int index) {
+        checkMemberIndex(index, virtualMethodCount);
+        return readMethod(staticFieldCount + instanceFieldCount + directMethodCount, index);
+    }
+
+    /**
+     * Finds a field of this class by name and type.
+     *
+     * The fields of a class are sorted by name, so this is a binary search over the field table.
+     *
+     * @return The field, or null if this class has no such field
+     */
+    @Nullable
+    public DexBackedField findField(@NonNull String name, @NonNull String type) {
+        int nameIndex = dexFile.findStringIndex(name);
+        if (nameIndex < 0) {
+            return null;
+        }
+        int index = findField(0, staticFieldCount, nameIndex, type);
+        if (index >= 0) {
+            return getStaticField(index);
+        }
+        index = findField(staticFieldCount, instanceFieldCount, nameIndex, type);
+        if (index >= 0) {
+            return getInstanceField(index);
+        }
+        return null;
+    }
+
+    /**
+     * Finds a method of this class by name and prototype.
+     *
+     * The methods of a class are sorted by name, so this is a binary search over the method table, followed by a
+     * comparison of the prototypes of any overloads.
+     *
+     * @return The method, or null if this class has no such method
+     */
+    @Nullable
+    public DexBackedMethod findMethod(@NonNull String name, @NonNull List<? extends CharSequence> parameterTypes,
+                                      @NonNull String returnType) {
+        int nameIndex = dexFile.findStringIndex(name);
+        if (nameIndex < 0) {
+            return null;
+        }
+        int directStart = staticFieldCount + instanceFieldCount;
+        int index = findMethod(directStart, directMethodCount, nameIndex, parameterTypes, returnType);
+        if (index >= 0) {
+            return getDirectMethod(index);
+        }
+        index = findMethod(directStart + directMethodCount, virtualMethodCount, nameIndex, parameterTypes,
+                returnType);
+        if (index >= 0) {
+            return getVirtualMethod(index);
+        }
+        return null;
+    }
+
+    private int findField(int start, int count, int nameIndex, @NonNull String type) {
+        int[] table = getMemberTable();
+        int first = findFirstMember(table, start, count, nameIndex, false);
+        for (int i = first; i < count; i++) {
+            int fieldIdItemOffset = dexFile.getFieldIdItemOffset(table[(start + i) * 2 + 1]);
+            if (dexFile.readSmallUint(fieldIdItemOffset + FieldIdItem.NAME_OFFSET) != nameIndex) {
+                break;
+            }
+            if (dexFile.getType(dexFile.readUshort(fieldIdItemOffset + FieldIdItem.TYPE_OFFSET)).equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findMethod(int start, int count, int nameIndex, @NonNull List<? extends CharSequence> parameterTypes,
+                           @NonNull String returnType) {
+        int[] table = getMemberTable();
+        int first = findFirstMember(table, start, count, nameIndex, true);
+        for (int i = first; i < count; i++) {
+            int methodIndex = table[(start + i) * 2 + 1];
+            int methodIdItemOffset = dexFile.getMethodIdItemOffset(methodIndex);
+            if (dexFile.readSmallUint(methodIdItemOffset + MethodIdItem.NAME_OFFSET) != nameIndex) {
+                break;
+            }
+            DexBackedMethodReference method = new DexBackedMethodReference(dexFile, methodIndex);
+            if (method.getReturnType().equals(returnType) &&
+                    CharSequenceUtils.listEquals(method.getParameterTypes(), parameterTypes)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the position of the first member in [start, start+count) whose name index is not less than the given
+    // one, relative to start. Members are sorted by field or method index, and so by name.
+    private int findFirstMember(@NonNull int[] table, int start, int count, int nameIndex, boolean methods) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int memberIndex = table[(start + mid) * 2 + 1];
+            int midNameIndex;
+            if (methods) {
+                midNameIndex = dexFile.readSmallUint(
+                        dexFile.getMethodIdItemOffset(memberIndex) + MethodIdItem.NAME_OFFSET);
+            } else {
+                midNameIndex = dexFile.readSmallUint(
+                        dexFile.getFieldIdItemOffset(memberIndex) + FieldIdItem.NAME_OFFSET);
+            }
+            if (midNameIndex < nameIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @NonNull
+    private DexBackedMethod readMethod(int start, int index) {
+        int position = start + index;
+        int[] table = getMemberTable();
+        DexReader reader = dexFile.readerAt(table[position * 2]);
+        AnnotationsDirectory annotationsDirectory = getAnnotationsDirectory();
+        return new DexBackedMethod(reader, this, getPreviousMemberIndex(table, position, start),
+                annotationsDirectory.getMethodAnnotationIterator(),
+                annotationsDirectory.getParameterAnnotationIterator());
+    }
+
+    private static int getPreviousMemberIndex(@NonNull int[] table, int position, int start) {
+        if (position == start) {
+            return 0;
+        }
+        return table[(position - 1) * 2 + 1];
+    }
+
+    private static void checkMemberIndex(int index, int count) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, count));
+        }
+    }
+
+    @NonNull
+    private int[] getMemberTable() {
+        int[] memberTable = this.memberTable;
+        if (memberTable == null) {
+            int fieldCount = staticFieldCount + instanceFieldCount;
+            int memberCount = fieldCount + directMethodCount + virtualMethodCount;
+            memberTable = new int[memberCount * 2];
+            if (memberCount > 0) {
+                int[] listEnds = { staticFieldCount, fieldCount, fieldCount + directMethodCount, memberCount };
+                int list = 0;
+                int previousIndex = 0;
+                DexReader reader = dexFile.readerAt(staticFieldsOffset);
+                for (int i = 0; i < memberCount; i++) {
+                    while (i == listEnds[list]) {
+                        list++;
+                        previousIndex = 0;
+                    }
+                    memberTable[i * 2] = reader.getOffset();
+                    previousIndex += reader.readLargeUleb128();
+                    memberTable[i * 2 + 1] = previousIndex;
+                    reader.skipUleb128();
+                    if (i >= fieldCount) {
+                        reader.skipUleb128();
+                    }
+                }
+            }
+            this.memberTable = memberTable;
+        }
+        return memberTable;
+    }
+
+    // The lazily computed fields below may be computed by several threads at once. Each thread computes the same
+    // value, and the fields are read only once per call, so a thread sees either the value or the initial state.
+
     private AnnotationsDirectory getAnnotationsDirectory() {
+        AnnotationsDirectory annotationsDirectory = this.annotationsDirectory;
         if (annotationsDirectory == null) {
             int annotationsDirectoryOffset = dexFile.readSmallUint(classDefOffset + ClassDefItem.ANNOTATIONS_OFFSET);
             annotationsDirectory = AnnotationsDirectory.newOrEmpty(dexFile, annotationsDirectoryOffset);
+            this.annotationsDirectory = annotationsDirectory;
         }
         return annotationsDirectory;
     }
 
     private int getInstanceFieldsOffset() {
+        int instanceFieldsOffset = this.instanceFieldsOffset;
         if (instanceFieldsOffset > 0) {
             return instanceFieldsOffset;
         }
         DexReader reader = new DexReader(dexFile, staticFieldsOffset);
         DexBackedField.skipFields(reader, staticFieldCount);
         instanceFieldsOffset = reader.getOffset();
+        this.instanceFieldsOffset = instanceFieldsOffset;
         return instanceFieldsOffset;
     }
 
     private int getDirectMethodsOffset() {
+        int directMethodsOffset = this.directMethodsOffset;
         if (directMethodsOffset > 0) {
             return directMethodsOffset;
         }
         DexReader reader = dexFile.readerAt(getInstanceFieldsOffset());
         DexBackedField.skipFields(reader, instanceFieldCount);
         directMethodsOffset = reader.getOffset();
+        this.directMethodsOffset = directMethodsOffset;
         return directMethodsOffset;
     }
 
     private int getVirtualMethodsOffset() {
+        int virtualMethodsOffset = this.virtualMethodsOffset;
         if (virtualMethodsOffset > 0) {
             return virtualMethodsOffset;
         }
         DexReader reader = dexFile.readerAt(getDirectMethodsOffset());
         DexBackedMethod.skipMethods(reader, directMethodCount);
         virtualMethodsOffset = reader.getOffset();
+        this.virtualMethodsOffset = virtualMethodsOffset;
         return virtualMethodsOffset;
     }
 
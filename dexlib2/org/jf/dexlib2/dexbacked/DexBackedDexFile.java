@@ -50,14 +50,20 @@ import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
 import org.jf.dexlib2.dexbacked.reference.DexBackedStringReference;
 import org.jf.dexlib2.dexbacked.reference.DexBackedTypeReference;
 import org.jf.dexlib2.dexbacked.util.FixedSizeSet;
+import org.jf.dexlib2.dexbacked.util.StringCache;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.reference.Reference;
 import org.jf.dexlib2.util.DexUtil;
 import org.jf.util.ExceptionWithContext;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -78,13 +84,24 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
     private final int classCount;
     private final int classStartOffset;
 
+    @Nullable
+    private volatile StringCache stringCache;
+    // maps a type index to the index of its class_def_item, or -1
+    @Nullable
+    private volatile int[] typeToClassIndex;
+    private volatile boolean skipDebugInfo;
+
     protected DexBackedDexFile(@NonNull Opcodes opcodes, @NonNull byte[] buf, int offset, boolean verifyMagic) {
+        this(opcodes, ByteBuffer.wrap(buf), offset, verifyMagic);
+    }
+
+    protected DexBackedDexFile(@NonNull Opcodes opcodes, @NonNull ByteBuffer buf, int offset, boolean verifyMagic) {
         super(buf, offset);
 
         this.opcodes = opcodes;
 
         if (verifyMagic) {
-            DexUtil.verifyDexHeader(buf, offset);
+            DexUtil.verifyDexHeader(readBytes(0, Math.min(HeaderItem.ITEM_SIZE, getDataLength())), 0);
         }
 
         stringCount = readSmallUint(HeaderItem.STRING_COUNT_OFFSET);
@@ -102,7 +119,7 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
     }
 
     public DexBackedDexFile(@NonNull Opcodes opcodes, @NonNull BaseDexBuffer buf) {
-        this(opcodes, buf.buf, buf.baseOffset);
+        this(opcodes, buf.data, buf.baseOffset, false);
     }
 
     public DexBackedDexFile(@NonNull Opcodes opcodes, @NonNull byte[] buf, int offset) {
@@ -113,6 +130,15 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         this(opcodes, buf, 0, true);
     }
 
+    /**
+     * Creates a dex file over the given buffer, without copying it.
+     *
+     * @param buf The buffer containing the dex file, starting at offset 0 of the buffer
+     */
+    public DexBackedDexFile(@NonNull Opcodes opcodes, @NonNull ByteBuffer buf) {
+        this(opcodes, buf, 0, true);
+    }
+
     @NonNull
     public static DexBackedDexFile fromInputStream(@NonNull Opcodes opcodes, @NonNull InputStream is)
             throws IOException {
@@ -122,6 +148,33 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         return new DexBackedDexFile(opcodes, buf, 0, false);
     }
 
+    /**
+     * Maps a dex file into memory. The file is read through the page cache as it is accessed, rather than being
+     * loaded onto the heap.
+     */
+    @NonNull
+    public static DexBackedDexFile fromFile(@NonNull Opcodes opcodes, @NonNull File file) throws IOException {
+        return fromFile(opcodes, file, 0, file.length());
+    }
+
+    /**
+     * Maps a byte range of a file that contains a dex file into memory, such as the data of a STORED zip entry.
+     *
+     * @param position The offset of the dex file in the file
+     * @param length The length of the dex file
+     */
+    @NonNull
+    public static DexBackedDexFile fromFile(@NonNull Opcodes opcodes, @NonNull File file, long position, long length)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position, length);
+            return new DexBackedDexFile(opcodes, buf);
+        } finally {
+            raf.close();
+        }
+    }
+
     @Override
     @NonNull
     public Opcodes getOpcodes() {
@@ -155,6 +208,88 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         };
     }
 
+    /**
+     * Looks up a class defined in this dex file by its type descriptor, e.g. "Ljava/lang/Object;".
+     *
+     * The string and type sections are sorted, so the descriptor is found with a binary search. The first lookup
+     * reads the type of every class_def_item into an index, without creating any DexBackedClassDef.
+     *
+     * @return The class, or null if it is not defined in this dex file
+     */
+    @Nullable
+    public DexBackedClassDef getClassByType(@NonNull String type) {
+        int typeIndex = findTypeIndex(type);
+        if (typeIndex < 0) {
+            return null;
+        }
+        int classIndex = getTypeToClassIndex()[typeIndex];
+        if (classIndex < 0) {
+            return null;
+        }
+        return new DexBackedClassDef(this, getClassDefItemOffset(classIndex));
+    }
+
+    /**
+     * @return The index of the given string, or -1 if it is not in this dex file
+     */
+    public int findStringIndex(@NonNull String string) {
+        int low = 0;
+        int high = stringCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getString(mid).compareTo(string);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the given type descriptor, or -1 if it is not in this dex file
+     */
+    public int findTypeIndex(@NonNull String type) {
+        int stringIndex = findStringIndex(type);
+        if (stringIndex < 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = typeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midStringIndex = readSmallUint(typeStartOffset + mid * TypeIdItem.ITEM_SIZE);
+            if (midStringIndex < stringIndex) {
+                low = mid + 1;
+            } else if (midStringIndex > stringIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @NonNull
+    private int[] getTypeToClassIndex() {
+        int[] typeToClassIndex = this.typeToClassIndex;
+        if (typeToClassIndex == null) {
+            typeToClassIndex = new int[typeCount];
+            Arrays.fill(typeToClassIndex, -1);
+            for (int i = classCount - 1; i >= 0; i--) {
+                int typeIndex = readSmallUint(classStartOffset + i * ClassDefItem.ITEM_SIZE + ClassDefItem.CLASS_OFFSET);
+                if (typeIndex < typeCount) {
+                    typeToClassIndex[typeIndex] = i;
+                }
+            }
+            this.typeToClassIndex = typeToClassIndex;
+        }
+        return typeToClassIndex;
+    }
+
     public int getStringIdItemOffset(int stringIndex) {
         if (stringIndex < 0 || stringIndex >= stringCount) {
             throw new InvalidItemIndex(stringIndex, "String index out of bounds: %d", stringIndex);
@@ -221,10 +356,51 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         return methodCount;
     }
 
+    /**
+     * Enables caching of decoded strings, for use when the same strings are looked up many times, as when
+     * rewriting the dex file.
+     *
+     * @param maxSize The maximum number of strings to cache, or 0 to disable the cache
+     */
+    public void setStringCacheSize(int maxSize) {
+        stringCache = maxSize > 0 ? new StringCache(stringCount, maxSize) : null;
+    }
+
+    @Nullable
+    public StringCache getStringCache() {
+        return stringCache;
+    }
+
+    /**
+     * When set, debug_info_items are not read at all: methods have no debug items and their parameters have no
+     * names. Use this when the line numbers and local variables are not going to be used or written out again.
+     */
+    public void setSkipDebugInfo(boolean skipDebugInfo) {
+        this.skipDebugInfo = skipDebugInfo;
+    }
+
+    public boolean isSkipDebugInfo() {
+        return skipDebugInfo;
+    }
+
     @NonNull
     public String getString(int stringIndex) {
         int stringOffset = getStringIdItemOffset(stringIndex);
-        int stringDataOffset = readSmallUint(stringOffset);
+        StringCache stringCache = this.stringCache;
+        if (stringCache != null) {
+            String string = stringCache.get(stringIndex);
+            if (string == null) {
+                string = readString(stringOffset);
+                stringCache.put(stringIndex, string);
+            }
+            return string;
+        }
+        return readString(stringOffset);
+    }
+
+    @NonNull
+    private String readString(int stringIdItemOffset) {
+        int stringDataOffset = readSmallUint(stringIdItemOffset);
         DexReader reader = readerAt(stringDataOffset);
         int utf16Length = reader.readSmallUleb128();
         return reader.readString(utf16Length);
@@ -195,23 +195,29 @@ public class DexBackedMethod extends BaseMethodReference implements Method {
     }
 
     private int getMethodIdItemOffset() {
+        int methodIdItemOffset = this.methodIdItemOffset;
         if (methodIdItemOffset == 0) {
             methodIdItemOffset = dexFile.getMethodIdItemOffset(methodIndex);
+            this.methodIdItemOffset = methodIdItemOffset;
         }
         return methodIdItemOffset;
     }
 
     private int getProtoIdItemOffset() {
+        int protoIdItemOffset = this.protoIdItemOffset;
         if (protoIdItemOffset == 0) {
             int protoIndex = dexFile.readUshort(getMethodIdItemOffset() + MethodIdItem.PROTO_OFFSET);
             protoIdItemOffset = dexFile.getProtoIdItemOffset(protoIndex);
+            this.protoIdItemOffset = protoIdItemOffset;
         }
         return protoIdItemOffset;
     }
 
     private int getParametersOffset() {
+        int parametersOffset = this.parametersOffset;
         if (parametersOffset == -1) {
             parametersOffset = dexFile.readSmallUint(getProtoIdItemOffset() + ProtoIdItem.PARAMETERS_OFFSET);
+            this.parametersOffset = parametersOffset;
         }
         return parametersOffset;
     }
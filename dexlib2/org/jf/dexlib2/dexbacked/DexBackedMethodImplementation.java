@@ -33,6 +33,7 @@ package org.jf.dexlib2.dexbacked;
 
 import com.google.common.collect.ImmutableList;
 import org.jf.dexlib2.dexbacked.instruction.DexBackedInstruction;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.dexbacked.raw.CodeItem;
 import org.jf.dexlib2.dexbacked.util.DebugInfo;
 import org.jf.dexlib2.dexbacked.util.FixedSizeList;
@@ -94,6 +95,16 @@ public class DexBackedMethodImplementation implements MethodImplementation {
         };
     }
 
+    /**
+     * Returns a cursor over the instructions of this method, for scans that don't need Instruction objects.
+     */
+    @NonNull
+    public InstructionCursor getInstructionCursor() {
+        int instructionsSize = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+        int instructionsStartOffset = codeOffset + CodeItem.INSTRUCTION_START_OFFSET;
+        return new InstructionCursor(dexFile, instructionsStartOffset, instructionsStartOffset + instructionsSize*2);
+    }
+
     @NonNull
     @Override
     public List<? extends DexBackedTryBlock> getTryBlocks() {
@@ -124,6 +135,9 @@ public class DexBackedMethodImplementation implements MethodImplementation {
 
     @NonNull
     private DebugInfo getDebugInfo() {
+        if (dexFile.isSkipDebugInfo()) {
+            return DebugInfo.newOrEmpty(dexFile, 0, this);
+        }
         int debugOffset = dexFile.readInt(codeOffset + CodeItem.DEBUG_INFO_OFFSET);
 
         if (debugOffset == -1 || debugOffset == 0) {
@@ -133,7 +147,7 @@ public class DexBackedMethodImplementation implements MethodImplementation {
             System.err.println(String.format("%s: Invalid debug offset", method));
             return DebugInfo.newOrEmpty(dexFile, 0, this);
         }
-        if (debugOffset >= dexFile.buf.length) {
+        if (debugOffset >= dexFile.getDataLength()) {
             System.err.println(String.format("%s: Invalid debug offset", method));
             return DebugInfo.newOrEmpty(dexFile, 0, this);
         }
@@ -31,26 +31,27 @@
 
 package org.jf.dexlib2.dexbacked;
 
-import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.io.ByteStreams;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.dexbacked.OatFile.OatDexFile;
 import org.jf.dexlib2.dexbacked.OatFile.SymbolTable.Symbol;
 import org.jf.dexlib2.dexbacked.raw.HeaderItem;
 import org.jf.dexlib2.iface.MultiDexContainer;
-import org.jf.util.AbstractForwardSequentialList;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
 public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFile> {
@@ -72,25 +73,38 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
     @NonNull private final Opcodes opcodes;
     @Nullable private final VdexProvider vdexProvider;
 
+    // The dex files are listed the first time they are needed, and each OatDexFile is created the first time it is
+    // accessed
+    @Nullable private volatile List<DexEntry> dexEntries;
+
     public OatFile(@NonNull byte[] buf) {
         this(buf, null);
     }
 
     public OatFile(@NonNull byte[] buf, @Nullable VdexProvider vdexProvider) {
-        super(buf);
+        this(ByteBuffer.wrap(buf), vdexProvider);
+    }
+
+    /**
+     * Creates an oat file over the given buffer, without copying it.
+     *
+     * @param buf The buffer containing the oat file, starting at offset 0 of the buffer
+     */
+    public OatFile(@NonNull ByteBuffer buf, @Nullable VdexProvider vdexProvider) {
+        super(buf, 0);
 
-        if (buf.length < MIN_ELF_HEADER_SIZE) {
+        if (getDataLength() < MIN_ELF_HEADER_SIZE) {
             throw new NotAnOatFileException();
         }
 
-        verifyMagic(buf);
+        verifyMagic(readBytes(0, ELF_MAGIC.length));
 
-        if (buf[4] == 1) {
+        if (readByte(4) == 1) {
             is64bit = false;
-        } else if (buf[4] == 2) {
+        } else if (readByte(4) == 2) {
             is64bit = true;
         } else {
-            throw new InvalidOatFileException(String.format("Invalid word-size value: %x", buf[5]));
+            throw new InvalidOatFileException(String.format("Invalid word-size value: %x", readByte(5)));
         }
 
         OatHeader oatHeader = null;
@@ -150,6 +164,21 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
         return new OatFile(buf, vdexProvider);
     }
 
+    /**
+     * Maps an oat file into memory. The file is read through the page cache as it is accessed, so opening a large
+     * oat file, such as a boot image, does not read it onto the heap.
+     */
+    @NonNull
+    public static OatFile fromFile(@NonNull File file, @Nullable VdexProvider vdexProvider) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new OatFile(buf, vdexProvider);
+        } finally {
+            raf.close();
+        }
+    }
+
     public int getOatVersion() {
         return oatHeader.getVersion();
     }
@@ -183,42 +212,33 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
     @NonNull
     public List<OatDexFile> getDexFiles() {
-        return new AbstractForwardSequentialList<OatDexFile>() {
-            @Override public int size() {
-                return oatHeader.getDexFileCount();
+        final List<DexEntry> dexEntries = getDexEntries();
+        return new AbstractList<OatDexFile>() {
+            @Override public OatDexFile get(int index) {
+                return dexEntries.get(index).getDexFile();
             }
 
-            @NonNull @Override public Iterator<OatDexFile> iterator() {
-                return Iterators.transform(new DexEntryIterator(), new Function<DexEntry, OatDexFile>() {
-                    @Nullable @Override public OatDexFile apply(DexEntry dexEntry) {
-                        return dexEntry.getDexFile();
-                    }
-                });
+            @Override public int size() {
+                return dexEntries.size();
             }
         };
     }
 
     @NonNull @Override public List<String> getDexEntryNames() throws IOException {
-        return new AbstractForwardSequentialList<String>() {
-            @Override public int size() {
-                return oatHeader.getDexFileCount();
+        final List<DexEntry> dexEntries = getDexEntries();
+        return new AbstractList<String>() {
+            @Override public String get(int index) {
+                return dexEntries.get(index).entryName;
             }
 
-            @NonNull @Override public Iterator<String> iterator() {
-                return Iterators.transform(new DexEntryIterator(), new Function<DexEntry, String>() {
-                    @Nullable @Override public String apply(DexEntry dexEntry) {
-                        return dexEntry.entryName;
-                    }
-                });
+            @Override public int size() {
+                return dexEntries.size();
             }
         };
     }
 
     @Nullable @Override public OatDexFile getEntry(@NonNull String entryName) throws IOException {
-        DexEntryIterator iterator = new DexEntryIterator();
-        while (iterator.hasNext()) {
-            DexEntry entry = iterator.next();
-
+        for (DexEntry entry: getDexEntries()) {
             if (entry.entryName.equals(entryName)) {
                 return entry.getDexFile();
             }
@@ -234,6 +254,11 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             this.filename = filename;
         }
 
+        public OatDexFile(@NonNull ByteBuffer buf, int offset, @NonNull String filename) {
+            super(opcodes, buf, offset, false);
+            this.filename = filename;
+        }
+
         @NonNull @Override public String getEntryName() {
             return filename;
         }
@@ -256,22 +281,22 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
         public boolean isValid() {
             for (int i=0; i<OAT_MAGIC.length; i++) {
-                if (buf[headerOffset + i] != OAT_MAGIC[i]) {
+                if (readByte(headerOffset + i) != OAT_MAGIC[i]) {
                     return false;
                 }
             }
 
             for (int i=4; i<7; i++) {
-                if (buf[headerOffset + i] < '0' || buf[headerOffset + i] > '9') {
+                if (readByte(headerOffset + i) < '0' || readByte(headerOffset + i) > '9') {
                     return false;
                 }
             }
 
-            return buf[headerOffset + 7] == 0;
+            return readByte(headerOffset + 7) == 0;
         }
 
         public int getVersion() {
-            return Integer.valueOf(new String(buf, headerOffset + 4, 3));
+            return Integer.valueOf(readAsciiString(headerOffset + 4, 3));
         }
 
         public int getDexFileCount() {
@@ -302,7 +327,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
             while (offset < endOffset) {
                 int keyStartOffset = offset;
-                while (offset < endOffset && buf[offset] != '\0') {
+                while (offset < endOffset && readByte(offset) != '\0') {
                     offset++;
                 }
                 if (offset >= endOffset) {
@@ -310,17 +335,17 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
                 }
                 int keyEndOffset = offset;
 
-                String k = new String(buf, keyStartOffset, keyEndOffset - keyStartOffset);
+                String k = readAsciiString(keyStartOffset, keyEndOffset - keyStartOffset);
                 if (k.equals(key)) {
                     int valueStartOffset = ++offset;
-                    while (offset < endOffset && buf[offset] != '\0') {
+                    while (offset < endOffset && readByte(offset) != '\0') {
                         offset++;
                     }
                     if (offset >= endOffset) {
                         throw new InvalidOatFileException("Oat file contains truncated key value store");
                     }
                     int valueEndOffset = offset;
-                    return new String(buf, valueStartOffset, valueEndOffset - valueStartOffset);
+                    return readAsciiString(valueStartOffset, valueEndOffset - valueStartOffset);
                 }
                 offset++;
             }
@@ -347,7 +372,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             entryCount = readUshort(48);
         }
 
-        if (offset + (entrySize * entryCount) > buf.length) {
+        if (offset + (entrySize * entryCount) > getDataLength()) {
             throw new InvalidOatFileException("The ELF section headers extend past the end of the file");
         }
 
@@ -440,7 +465,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             this.entrySize = header.getEntrySize();
             this.entryCount = header.getSize() / entrySize;
 
-            if (offset + entryCount * entrySize > buf.length) {
+            if (offset + entryCount * entrySize > getDataLength()) {
                 throw new InvalidOatFileException("Symbol table extends past end of file");
             }
         }
@@ -526,7 +551,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             this.offset = header.getOffset();
             this.size = header.getSize();
 
-            if (offset + size > buf.length) {
+            if (offset + size > getDataLength()) {
                 throw new InvalidOatFileException("String table extends past end of file");
             }
         }
@@ -539,48 +564,69 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
             int start = offset + index;
             int end = start;
-            while (buf[end] != 0) {
+            while (readByte(end) != 0) {
                 end++;
                 if (end >= offset + size) {
                     throw new InvalidOatFileException("String extends past end of string table");
                 }
             }
 
-            return new String(buf, start, end-start, Charset.forName("US-ASCII"));
+            return readAsciiString(start, end-start);
         }
     }
 
+    @NonNull
+    private String readAsciiString(int offset, int length) {
+        return new String(readBytes(offset, length), Charset.forName("US-ASCII"));
+    }
+
     private class DexEntry {
         public final String entryName;
-        public final byte[] buf;
+        public final ByteBuffer buf;
         public final int dexOffset;
+        @Nullable private OatDexFile dexFile;
 
-
-        public DexEntry(String entryName, byte[] buf, int dexOffset) {
+        public DexEntry(String entryName, ByteBuffer buf, int dexOffset) {
             this.entryName = entryName;
             this.buf = buf;
             this.dexOffset = dexOffset;
         }
 
-        public OatDexFile getDexFile() {
-            return new OatDexFile(buf, dexOffset, entryName);
+        public synchronized OatDexFile getDexFile() {
+            if (dexFile == null) {
+                dexFile = new OatDexFile(buf, dexOffset, entryName);
+            }
+            return dexFile;
         }
     }
 
-    private class DexEntryIterator implements Iterator<DexEntry> {
-        int index = 0;
-        int offset = oatHeader.getDexListStart();
+    @NonNull
+    private List<DexEntry> getDexEntries() {
+        List<DexEntry> dexEntries = this.dexEntries;
+        if (dexEntries == null) {
+            dexEntries = readDexEntries();
+            this.dexEntries = dexEntries;
+        }
+        return dexEntries;
+    }
 
-        @Override public boolean hasNext() {
-            return index < oatHeader.getDexFileCount();
+    @NonNull
+    private List<DexEntry> readDexEntries() {
+        int dexFileCount = oatHeader.getDexFileCount();
+        List<DexEntry> dexEntries = new ArrayList<DexEntry>(dexFileCount);
+
+        ByteBuffer vdex = null;
+        if (getOatVersion() >= 87 && vdexProvider != null) {
+            vdex = vdexProvider.getVdexBuffer();
         }
 
-        @Override public DexEntry next() {
+        int offset = oatHeader.getDexListStart();
+        for (int index=0; index<dexFileCount; index++) {
             int filenameLength = readSmallUint(offset);
             offset += 4;
 
             // TODO: what is the correct character encoding?
-            String filename = new String(buf, offset, filenameLength, Charset.forName("US-ASCII"));
+            String filename = readAsciiString(offset, filenameLength);
             offset += filenameLength;
 
             offset += 4; // checksum
@@ -588,11 +634,11 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             int dexOffset = readSmallUint(offset);
             offset += 4;
 
-            byte[] buf;
-            if (getOatVersion() >= 87 && vdexProvider != null && vdexProvider.getVdex() != null) {
-                buf = vdexProvider.getVdex();
+            ByteBuffer buf;
+            if (vdex != null) {
+                buf = vdex;
             } else {
-                buf = OatFile.this.buf;
+                buf = data;
                 dexOffset += oatHeader.headerOffset;
             }
 
@@ -608,14 +654,9 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
                 offset += 4 * classCount;
             }
 
-            index++;
-
-            return new DexEntry(filename, buf, dexOffset);
-        }
-
-        @Override public void remove() {
-            throw new UnsupportedOperationException();
+            dexEntries.add(new DexEntry(filename, buf, dexOffset));
         }
+        return dexEntries;
     }
 
     public static class InvalidOatFileException extends RuntimeException {
@@ -631,5 +672,15 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
     public interface VdexProvider {
         @Nullable
         byte[] getVdex();
+
+        /**
+         * @return The vdex file, starting at offset 0 of the buffer, or null if there is no vdex file. Providers that
+         * can map the file should override this, so the vdex does not have to be read onto the heap
+         */
+        @Nullable
+        default ByteBuffer getVdexBuffer() {
+            byte[] vdex = getVdex();
+            return vdex == null ? null : ByteBuffer.wrap(vdex);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,412 @@
+package org.jf.dexlib2.dexbacked.instruction;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.NibbleUtils;
+
+/**
+ * A cursor over the instructions of a code item, which decodes the current instruction in place instead of creating
+ * an Instruction for it.
+ *
+ * The accessors mirror the instruction interfaces (OneRegisterInstruction.getRegisterA, WideLiteralInstruction,
+ * ReferenceInstruction, and so on), but return raw values: references are returned as indices into the dex file's
+ * sections. Calling an accessor that the current instruction's format does not have throws an
+ * IllegalStateException.
+ *
+ * <pre>
+ * InstructionCursor cursor = implementation.getInstructionCursor();
+ * while (cursor.next()) {
+ *     if (cursor.getOpcode() == Opcode.INVOKE_STATIC &amp;&amp; cursor.getReferenceIndex() == methodIndex) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class InstructionCursor {
+    @NonNull private final DexBackedDexFile dexFile;
+    private final int startOffset;
+    private final int endOffset;
+
+    private int offset;
+    private int codeUnits;
+    @Nullable private Opcode opcode;
+    @Nullable private Format format;
+
+    /**
+     * @param startOffset The offset of the first instruction
+     * @param endOffset The offset after the last instruction
+     */
+    public InstructionCursor(@NonNull DexBackedDexFile dexFile, int startOffset, int endOffset) {
+        this.dexFile = dexFile;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        reset();
+    }
+
+    /**
+     * Moves the cursor back to before the first instruction.
+     */
+    public void reset() {
+        offset = startOffset;
+        codeUnits = 0;
+        opcode = null;
+        format = null;
+    }
+
+    /**
+     * Moves to the next instruction.
+     *
+     * @return false if there are no more instructions
+     */
+    public boolean next() {
+        offset += codeUnits * 2;
+        if (offset >= endOffset) {
+            codeUnits = 0;
+            opcode = null;
+            format = null;
+            return false;
+        }
+
+        int opcodeValue = dexFile.readUbyte(offset);
+        if (opcodeValue == 0) {
+            opcodeValue = dexFile.readUshort(offset);
+        }
+        opcode = dexFile.getOpcodes().getOpcodeByValue(opcodeValue);
+        if (opcode == null) {
+            format = null;
+            codeUnits = 1;
+        } else {
+            format = opcode.format;
+            codeUnits = readCodeUnits(format);
+        }
+
+        if (offset + codeUnits * 2 > endOffset) {
+            throw new ExceptionWithContext("Instruction at offset 0x%x is truncated", offset);
+        }
+        return true;
+    }
+
+    private int readCodeUnits(@NonNull Format format) {
+        switch (format) {
+            case PackedSwitchPayload:
+                return 4 + dexFile.readUshort(offset + 2) * 2;
+            case SparseSwitchPayload:
+                return 2 + dexFile.readUshort(offset + 2) * 4;
+            case ArrayPayload: {
+                int elementWidth = dexFile.readUshort(offset + 2);
+                int elementCount = dexFile.readSmallUint(offset + 4);
+                long size = ((long) elementWidth) * elementCount;
+                if (size > Integer.MAX_VALUE) {
+                    throw new ExceptionWithContext(
+                            "Invalid array-payload instruction: element width*count overflows");
+                }
+                return 4 + (int) ((size + 1) / 2);
+            }
+            default:
+                return format.size / 2;
+        }
+    }
+
+    /**
+     * @return The offset of the first instruction in the dex file
+     */
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * @return The offset after the last instruction in the dex file
+     */
+    public int getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * @return The offset of the current instruction in the dex file
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The address of the current instruction, in code units from the start of the method
+     */
+    public int getCodeAddress() {
+        return (offset - startOffset) / 2;
+    }
+
+    public int getCodeUnits() {
+        return codeUnits;
+    }
+
+    /**
+     * @return The opcode of the current instruction, or null if the opcode is not known for the dex file's api level
+     */
+    @Nullable
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public int getOpcodeValue() {
+        int opcodeValue = dexFile.readUbyte(offset);
+        if (opcodeValue == 0) {
+            opcodeValue = dexFile.readUshort(offset);
+        }
+        return opcodeValue;
+    }
+
+    public int getRegisterA() {
+        switch (checkFormat()) {
+            case Format11n:
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractLowUnsignedNibble(dexFile.readByte(offset + 1));
+            case Format11x:
+            case Format21c:
+            case Format21ih:
+            case Format21lh:
+            case Format21s:
+            case Format21t:
+            case Format22b:
+            case Format22x:
+            case Format23x:
+            case Format31c:
+            case Format31i:
+            case Format31t:
+            case Format51l:
+                return dexFile.readUbyte(offset + 1);
+            case Format32x:
+                return dexFile.readUshort(offset + 2);
+            default:
+                throw noSuchOperand("register A");
+        }
+    }
+
+    public int getRegisterB() {
+        switch (checkFormat()) {
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractHighUnsignedNibble(dexFile.readByte(offset + 1));
+            case Format22b:
+            case Format23x:
+                return dexFile.readUbyte(offset + 2);
+            case Format22x:
+                return dexFile.readUshort(offset + 2);
+            case Format32x:
+                return dexFile.readUshort(offset + 4);
+            default:
+                throw noSuchOperand("register B");
+        }
+    }
+
+    public int getRegisterC() {
+        switch (checkFormat()) {
+            case Format23x:
+                return dexFile.readUbyte(offset + 3);
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 4));
+            default:
+                throw noSuchOperand("register C");
+        }
+    }
+
+    public int getRegisterD() {
+        checkFiveRegisterFormat("register D");
+        return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 4));
+    }
+
+    public int getRegisterE() {
+        checkFiveRegisterFormat("register E");
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 5));
+    }
+
+    public int getRegisterF() {
+        checkFiveRegisterFormat("register F");
+        return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 5));
+    }
+
+    public int getRegisterG() {
+        checkFiveRegisterFormat("register G");
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 1));
+    }
+
+    /**
+     * @return The number of registers passed to an invoke-style instruction, for both the five register and the
+     * register range formats
+     */
+    public int getRegisterCount() {
+        switch (checkFormat()) {
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 1));
+            case Format3rc:
+            case Format3rmi:
+            case Format3rms:
+            case Format4rcc:
+                return dexFile.readUbyte(offset + 1);
+            default:
+                throw noSuchOperand("register count");
+        }
+    }
+
+    public int getStartRegister() {
+        switch (checkFormat()) {
+            case Format3rc:
+            case Format3rmi:
+            case Format3rms:
+            case Format4rcc:
+                return dexFile.readUshort(offset + 4);
+            default:
+                throw noSuchOperand("start register");
+        }
+    }
+
+    public long getWideLiteral() {
+        switch (checkFormat()) {
+            case Format11n:
+                return NibbleUtils.extractHighSignedNibble(dexFile.readByte(offset + 1));
+            case Format21ih:
+                return dexFile.readShort(offset + 2) << 16;
+            case Format21lh:
+                return ((long) dexFile.readShort(offset + 2)) << 48;
+            case Format21s:
+            case Format22s:
+                return dexFile.readShort(offset + 2);
+            case Format22b:
+                return dexFile.readByte(offset + 3);
+            case Format31i:
+                return dexFile.readInt(offset + 2);
+            case Format51l:
+                return dexFile.readLong(offset + 2);
+            default:
+                throw noSuchOperand("literal");
+        }
+    }
+
+    /**
+     * @return The branch target of the current instruction, relative to its address
+     */
+    public int getCodeOffset() {
+        switch (checkFormat()) {
+            case Format10t:
+                return dexFile.readByte(offset + 1);
+            case Format20t:
+            case Format21t:
+            case Format22t:
+                return dexFile.readShort(offset + 2);
+            case Format30t:
+            case Format31t:
+                return dexFile.readInt(offset + 2);
+            default:
+                throw noSuchOperand("code offset");
+        }
+    }
+
+    /**
+     * @return The type of the reference returned by {@link #getReferenceIndex()}, as a
+     * {@link org.jf.dexlib2.ReferenceType} value
+     */
+    public int getReferenceType() {
+        Format format = checkFormat();
+        if (format == Format.Format20bc) {
+            return (dexFile.readUbyte(offset + 1) >>> 6) + 1;
+        }
+        checkReferenceFormat(format);
+        return opcode.referenceType;
+    }
+
+    /**
+     * @return The index of the string, type, field or method referenced by the current instruction
+     */
+    public int getReferenceIndex() {
+        Format format = checkFormat();
+        if (format == Format.Format20bc) {
+            return dexFile.readUshort(offset + 2);
+        }
+        checkReferenceFormat(format);
+        if (format == Format.Format31c) {
+            return dexFile.readSmallUint(offset + 2);
+        }
+        return dexFile.readUshort(offset + 2);
+    }
+
+    public int getReferenceType2() {
+        checkSecondReferenceFormat();
+        return opcode.referenceType2;
+    }
+
+    /**
+     * @return The index of the prototype referenced by an invoke-polymorphic instruction
+     */
+    public int getReferenceIndex2() {
+        checkSecondReferenceFormat();
+        return dexFile.readUshort(offset + 6);
+    }
+
+    @NonNull
+    private Format checkFormat() {
+        if (format == null) {
+            if (offset >= endOffset || codeUnits == 0) {
+                throw new IllegalStateException("The cursor is not on an instruction");
+            }
+            throw noSuchOperand("operands");
+        }
+        return format;
+    }
+
+    private void checkFiveRegisterFormat(String operand) {
+        switch (checkFormat()) {
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return;
+            default:
+                throw noSuchOperand(operand);
+        }
+    }
+
+    private void checkReferenceFormat(Format format) {
+        switch (format) {
+            case Format21c:
+            case Format22c:
+            case Format31c:
+            case Format35c:
+            case Format3rc:
+            case Format45cc:
+            case Format4rcc:
+                return;
+            default:
+                throw noSuchOperand("reference");
+        }
+    }
+
+    private void checkSecondReferenceFormat() {
+        Format format = checkFormat();
+        if (format != Format.Format45cc && format != Format.Format4rcc) {
+            throw noSuchOperand("second reference");
+        }
+    }
+
+    @NonNull
+    private IllegalStateException noSuchOperand(String operand) {
+        return new IllegalStateException(String.format("Instruction at offset 0x%x (%s) has no %s", offset,
+                opcode == null ? "unknown opcode" : opcode.name, operand));
+    }
+}
@@ -83,6 +83,9 @@ public class HeaderItem {
     public static final int CLASS_COUNT_OFFSET = 96;
     public static final int CLASS_START_OFFSET = 100;
 
+    public static final int DATA_SIZE_OFFSET = 104;
+    public static final int DATA_START_OFFSET = 108;
+
     @NonNull
     private RawDexFile dexFile;
 
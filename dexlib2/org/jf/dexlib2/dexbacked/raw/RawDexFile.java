@@ -42,7 +42,6 @@ import org.jf.dexlib2.util.AnnotatedBytes;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Arrays;
 import java.util.List;
 
 public class RawDexFile extends DexBackedDexFile {
@@ -61,7 +60,7 @@ public class RawDexFile extends DexBackedDexFile {
 
     @NonNull
     public byte[] readByteRange(int start, int length) {
-        return Arrays.copyOfRange(getBuf(), getBaseOffset() + start, getBaseOffset() + start + length);
+        return readBytes(start, length);
     }
 
     public int getMapOffset() {
@@ -99,9 +99,11 @@ public class DexBackedMethodReference extends BaseMethodReference {
     }
 
     private int getProtoIdItemOffset() {
+        int protoIdItemOffset = this.protoIdItemOffset;
         if (protoIdItemOffset == 0) {
             protoIdItemOffset = dexFile.getProtoIdItemOffset(
                     dexFile.readUshort(methodIdItemOffset + MethodIdItem.PROTO_OFFSET));
+            this.protoIdItemOffset = protoIdItemOffset;
         }
         return protoIdItemOffset;
     }
@@ -34,6 +34,7 @@ package org.jf.dexlib2.dexbacked.util;
 import android.support.annotation.NonNull;
 
 import java.util.AbstractList;
+import java.util.Spliterator;
 
 /**
  * This provides a thin facade over AbstractList, to take care of bounds checking.
@@ -49,6 +50,11 @@ public abstract class FixedSizeList<T> extends AbstractList<T> {
         return readItem(index);
     }
 
+    @Override
+    public Spliterator<T> spliterator() {
+        return new FixedSizeSpliterator<T>(this::readItem, 0, size(), 0);
+    }
+
     /**
      * Reads the item at {@code index}
      *
@@ -36,6 +36,7 @@ import android.support.annotation.NonNull;
 import java.util.AbstractSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
 
 /**
  * This provides a wrapper around AbstractSet to allow easy implementation when backed by a list that can be randomly
@@ -67,6 +68,11 @@ public abstract class FixedSizeSet<T> extends AbstractSet<T> {
         };
     }
 
+    @Override
+    public Spliterator<T> spliterator() {
+        return new FixedSizeSpliterator<T>(this::readItem, 0, size(), Spliterator.DISTINCT);
+    }
+
     /**
      * Reads the item at {@code index}
      *
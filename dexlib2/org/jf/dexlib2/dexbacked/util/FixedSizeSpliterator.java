@@ -0,0 +1,73 @@
+package org.jf.dexlib2.dexbacked.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * A Spliterator over an index range of a randomly accessible collection, such as a {@link FixedSizeList} or
+ * {@link FixedSizeSet}. It splits the range in half, so the items can be read in parallel.
+ *
+ * @param <T> The type of the items
+ */
+public class FixedSizeSpliterator<T> implements Spliterator<T> {
+    @NonNull private final IntFunction<? extends T> reader;
+    private final int characteristics;
+    private int index;
+    private final int end;
+
+    /**
+     * @param reader Reads the item at a given index
+     * @param start The index of the first item
+     * @param end The index after the last item
+     * @param characteristics Additional characteristics of the items, such as NONNULL if the reader never returns
+     *                        null. SIZED, SUBSIZED and ORDERED are always reported
+     */
+    public FixedSizeSpliterator(@NonNull IntFunction<? extends T> reader, int start, int end, int characteristics) {
+        this.reader = reader;
+        this.index = start;
+        this.end = end;
+        this.characteristics = characteristics | SIZED | SUBSIZED | ORDERED;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (index >= end) {
+            return false;
+        }
+        action.accept(reader.apply(index++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        int end = this.end;
+        for (int i = index; i < end; i++) {
+            action.accept(reader.apply(i));
+        }
+        index = end;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        int start = index;
+        int mid = (start + end) >>> 1;
+        if (mid <= start) {
+            return null;
+        }
+        index = mid;
+        return new FixedSizeSpliterator<T>(reader, start, mid, characteristics);
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return characteristics;
+    }
+}
@@ -0,0 +1,83 @@
+package org.jf.dexlib2.dexbacked.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size cache of decoded strings, keyed by string index.
+ *
+ * If the cache is at least as large as the string section, every string gets its own slot. Otherwise the cache is
+ * direct mapped, and strings whose indices collide evict each other.
+ *
+ * The cache is safe to use from multiple threads without locking. Entries are immutable, so a thread either sees a
+ * complete entry or misses and decodes the string again.
+ */
+public class StringCache {
+    private final Entry[] entries;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param stringCount The number of strings in the dex file
+     * @param maxSize The maximum number of strings to keep
+     */
+    public StringCache(int stringCount, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (stringCount <= maxSize) {
+            entries = new Entry[stringCount];
+            mask = -1;
+        } else {
+            int size = Integer.highestOneBit(maxSize);
+            entries = new Entry[size];
+            mask = size - 1;
+        }
+    }
+
+    @Nullable
+    public String get(int stringIndex) {
+        Entry entry = entries[stringIndex & mask];
+        if (entry != null && entry.stringIndex == stringIndex) {
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(int stringIndex, @NonNull String value) {
+        entries[stringIndex & mask] = new Entry(stringIndex, value);
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StringCache[size=%d, hits=%d, misses=%d]", size(), getHitCount(), getMissCount());
+    }
+
+    private static class Entry {
+        final int stringIndex;
+        @NonNull final String value;
+
+        Entry(int stringIndex, @NonNull String value) {
+            this.stringIndex = stringIndex;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package org.jf.dexlib2.util;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.jf.dexlib2.dexbacked.BaseDexBuffer;
+import org.jf.dexlib2.dexbacked.BaseDexReader;
+import org.jf.dexlib2.dexbacked.raw.ClassDefItem;
+import org.jf.dexlib2.dexbacked.raw.CodeItem;
+import org.jf.dexlib2.dexbacked.raw.FieldIdItem;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.dexlib2.dexbacked.raw.ItemType;
+import org.jf.dexlib2.dexbacked.raw.MapItem;
+import org.jf.dexlib2.dexbacked.raw.MethodIdItem;
+import org.jf.dexlib2.dexbacked.raw.ProtoIdItem;
+import org.jf.dexlib2.dexbacked.raw.StringIdItem;
+import org.jf.dexlib2.dexbacked.raw.TypeIdItem;
+import org.jf.dexlib2.util.DexUtil.InvalidFile;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+
+/**
+ * Checks the structure of a dex file: the header, checksum and signature, the map_list, the bounds and sort order
+ * of the index sections, the references between them, and the bounds of the class_data_items and code_items.
+ *
+ * This is not a verifier. Instructions, annotations and debug info are not looked at. The point is to catch a broken
+ * dex file cheaply, right after it has been written, instead of when it is installed.
+ *
+ * The checks of the different sections are independent of each other, and the large ones are split into chunks,
+ * so they run in parallel on the given executor.
+ */
+public class DexValidator {
+    // the maximum number of problems reported by each check
+    private static final int MAX_PROBLEMS = 100;
+    private static final int MIN_CHUNK_SIZE = 2048;
+
+    @NonNull private final BaseDexBuffer dexBuf;
+    @NonNull private final ByteBuffer data;
+    @NonNull private final List<String> headerProblems = new ArrayList<String>();
+
+    private int fileSize;
+    private int dataStart;
+    private int dataEnd;
+
+    private int stringCount;
+    private int stringStart;
+    private int typeCount;
+    private int typeStart;
+    private int protoCount;
+    private int protoStart;
+    private int fieldCount;
+    private int fieldStart;
+    private int methodCount;
+    private int methodStart;
+    private int classCount;
+    private int classStart;
+
+    private DexValidator(@NonNull ByteBuffer buf) {
+        this.dexBuf = new BaseDexBuffer(buf, 0);
+        this.data = buf.duplicate();
+    }
+
+    /**
+     * Validates a dex file, running the checks on the common fork join pool.
+     *
+     * @throws InvalidFile If any problems were found. The message lists them, one per line
+     */
+    public static void validate(@NonNull byte[] buf) {
+        validate(ByteBuffer.wrap(buf));
+    }
+
+    /**
+     * @param buf The dex file, starting at offset 0 of the buffer
+     * @throws InvalidFile If any problems were found. The message lists them, one per line
+     */
+    public static void validate(@NonNull ByteBuffer buf) {
+        List<String> problems = findProblems(buf, ForkJoinPool.commonPool());
+        if (!problems.isEmpty()) {
+            throw new InvalidFile(Joiner.on('\n').join(problems));
+        }
+    }
+
+    /**
+     * @param buf The dex file, starting at offset 0 of the buffer
+     * @param executor The executor to run the checks on. Use {@link MoreExecutors#directExecutor()} to run them on
+     *                 the calling thread
+     * @return A description of each problem that was found, or an empty list if the dex file looks sound
+     */
+    @NonNull
+    public static List<String> findProblems(@NonNull ByteBuffer buf, @NonNull Executor executor) {
+        DexValidator validator = new DexValidator(buf);
+        if (!validator.checkHeader()) {
+            return validator.headerProblems;
+        }
+
+        List<FutureTask<List<String>>> tasks = new ArrayList<FutureTask<List<String>>>();
+        for (Check check: validator.getChecks()) {
+            FutureTask<List<String>> task = new FutureTask<List<String>>(check);
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        List<String> problems = new ArrayList<String>(validator.headerProblems);
+        for (FutureTask<List<String>> task: tasks) {
+            problems.addAll(Futures.getUnchecked(task));
+        }
+        return problems;
+    }
+
+    private boolean checkHeader() {
+        int length = dexBuf.getDataLength();
+        if (length < HeaderItem.ITEM_SIZE) {
+            headerProblems.add(String.format("File is too short to be a dex file: %d bytes", length));
+            return false;
+        }
+        try {
+            DexUtil.verifyDexHeader(dexBuf.readBytes(0, HeaderItem.ITEM_SIZE), 0);
+        } catch (RuntimeException ex) {
+            headerProblems.add(ex.getMessage());
+            return false;
+        }
+
+        fileSize = dexBuf.readInt(HeaderItem.FILE_SIZE_OFFSET);
+        if (fileSize != length) {
+            headerProblems.add(String.format("file_size is %d, but the file is %d bytes",
+                    fileSize & 0xffffffffL, length));
+            if (fileSize < HeaderItem.ITEM_SIZE || fileSize > length) {
+                return false;
+            }
+        }
+
+        int headerSize = dexBuf.readInt(HeaderItem.HEADER_SIZE_OFFSET);
+        if (headerSize != HeaderItem.ITEM_SIZE) {
+            headerProblems.add(String.format("Invalid header_size: 0x%x", headerSize));
+        }
+
+        boolean valid = true;
+        int dataSize = dexBuf.readInt(HeaderItem.DATA_SIZE_OFFSET);
+        dataStart = dexBuf.readInt(HeaderItem.DATA_START_OFFSET);
+        if (dataStart < HeaderItem.ITEM_SIZE || dataSize < 0 || (long)dataStart + dataSize > fileSize) {
+            headerProblems.add(String.format("data section at 0x%x with size 0x%x is out of bounds",
+                    dataStart, dataSize));
+            valid = false;
+        } else if (dataSize % 4 != 0) {
+            headerProblems.add(String.format("data_size 0x%x is not a multiple of 4", dataSize));
+        }
+        dataEnd = dataStart + dataSize;
+
+        stringCount = dexBuf.readInt(HeaderItem.STRING_COUNT_OFFSET);
+        stringStart = dexBuf.readInt(HeaderItem.STRING_START_OFFSET);
+        valid &= checkIndexSection(ItemType.STRING_ID_ITEM, stringCount, stringStart, StringIdItem.ITEM_SIZE);
+        typeCount = dexBuf.readInt(HeaderItem.TYPE_COUNT_OFFSET);
+        typeStart = dexBuf.readInt(HeaderItem.TYPE_START_OFFSET);
+        valid &= checkIndexSection(ItemType.TYPE_ID_ITEM, typeCount, typeStart, TypeIdItem.ITEM_SIZE);
+        protoCount = dexBuf.readInt(HeaderItem.PROTO_COUNT_OFFSET);
+        protoStart = dexBuf.readInt(HeaderItem.PROTO_START_OFFSET);
+        valid &= checkIndexSection(ItemType.PROTO_ID_ITEM, protoCount, protoStart, ProtoIdItem.ITEM_SIZE);
+        fieldCount = dexBuf.readInt(HeaderItem.FIELD_COUNT_OFFSET);
+        fieldStart = dexBuf.readInt(HeaderItem.FIELD_START_OFFSET);
+        valid &= checkIndexSection(ItemType.FIELD_ID_ITEM, fieldCount, fieldStart, FieldIdItem.ITEM_SIZE);
+        methodCount = dexBuf.readInt(HeaderItem.METHOD_COUNT_OFFSET);
+        methodStart = dexBuf.readInt(HeaderItem.METHOD_START_OFFSET);
+        valid &= checkIndexSection(ItemType.METHOD_ID_ITEM, methodCount, methodStart, MethodIdItem.ITEM_SIZE);
+        classCount = dexBuf.readInt(HeaderItem.CLASS_COUNT_OFFSET);
+        classStart = dexBuf.readInt(HeaderItem.CLASS_START_OFFSET);
+        valid &= checkIndexSection(ItemType.CLASS_DEF_ITEM, classCount, classStart, ClassDefItem.ITEM_SIZE);
+        return valid;
+    }
+
+    private boolean checkIndexSection(int itemType, int count, int offset, int itemSize) {
+        if (count < 0 || (count > 0 && (offset < HeaderItem.ITEM_SIZE || offset % 4 != 0 ||
+                offset + (long)count * itemSize > fileSize))) {
+            headerProblems.add(String.format("%s section at 0x%x with %d items is out of bounds",
+                    ItemType.getItemTypeName(itemType), offset, count & 0xffffffffL));
+            return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    private List<Check> getChecks() {
+        List<Check> checks = new ArrayList<Check>();
+        checks.add(new Check("checksum") {
+            @Override void check() {
+                Adler32 adler = new Adler32();
+                adler.update(range(HeaderItem.CHECKSUM_DATA_START_OFFSET, fileSize));
+                int checksum = dexBuf.readInt(HeaderItem.CHECKSUM_OFFSET);
+                if ((int)adler.getValue() != checksum) {
+                    problem("Bad checksum: expected 0x%08x, found 0x%08x", (int)adler.getValue(), checksum);
+                }
+            }
+        });
+        checks.add(new Check("signature") {
+            @Override void check() {
+                MessageDigest md;
+                try {
+                    md = MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new RuntimeException(ex);
+                }
+                md.update(range(HeaderItem.SIGNATURE_DATA_START_OFFSET, fileSize));
+                if (!Arrays.equals(md.digest(),
+                        dexBuf.readBytes(HeaderItem.SIGNATURE_OFFSET, HeaderItem.SIGNATURE_SIZE))) {
+                    problem("Bad signature");
+                }
+            }
+        });
+        checks.add(new Check("map_list") {
+            @Override void check() {
+                checkMapList(this);
+            }
+        });
+
+        for (final int[] chunk: split(stringCount)) {
+            checks.add(new Check("string_ids") {
+                @Override void check() {
+                    checkStrings(this, chunk[0], chunk[1]);
+                }
+            });
+        }
+        checks.add(new Check("type_ids") {
+            @Override void check() {
+                checkTypes(this);
+            }
+        });
+        checks.add(new Check("proto_ids") {
+            @Override void check() {
+                checkProtos(this);
+            }
+        });
+        checks.add(new Check("field_ids") {
+            @Override void check() {
+                checkFields(this);
+            }
+        });
+        checks.add(new Check("method_ids") {
+            @Override void check() {
+                checkMethods(this);
+            }
+        });
+        checks.add(new Check("class_defs") {
+            @Override void check() {
+                checkClassDefs(this);
+            }
+        });
+        for (final int[] chunk: split(classCount)) {
+            checks.add(new Check("class_data") {
+                @Override void check() {
+                    checkClassData(this, chunk[0], chunk[1]);
+                }
+            });
+        }
+        return checks;
+    }
+
+    @NonNull
+    private static List<int[]> split(int count) {
+        int chunkCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_CHUNK_SIZE));
+        List<int[]> chunks = new ArrayList<int[]>(chunkCount);
+        for (int i=0; i<chunkCount; i++) {
+            chunks.add(new int[] { (int)((long)count * i / chunkCount), (int)((long)count * (i + 1) / chunkCount) });
+        }
+        return chunks;
+    }
+
+    @NonNull
+    private ByteBuffer range(int start, int end) {
+        ByteBuffer range = data.duplicate();
+        range.limit(end);
+        range.position(start);
+        return range;
+    }
+
+    private boolean isInData(int offset) {
+        return offset >= dataStart && offset < dataEnd;
+    }
+
+    private void checkMapList(@NonNull Check check) {
+        int mapOffset = dexBuf.readInt(HeaderItem.MAP_OFFSET);
+        if (mapOffset % 4 != 0 || !isInData(mapOffset) || mapOffset + 4 > dataEnd) {
+            check.problem("map_list offset 0x%x is out of bounds", mapOffset);
+            return;
+        }
+        int size = dexBuf.readInt(mapOffset);
+        if (size < 0 || mapOffset + 4 + (long)size * MapItem.ITEM_SIZE > dataEnd) {
+            check.problem("map_list with %d items is out of bounds", size & 0xffffffffL);
+            return;
+        }
+
+        List<Integer> seen = new ArrayList<Integer>(size);
+        long previousEnd = 0;
+        for (int i=0; i<size; i++) {
+            int itemOffset = mapOffset + 4 + i * MapItem.ITEM_SIZE;
+            int type = dexBuf.readUshort(itemOffset + MapItem.TYPE_OFFSET);
+            int count = dexBuf.readInt(itemOffset + MapItem.SIZE_OFFSET);
+            int offset = dexBuf.readInt(itemOffset + MapItem.OFFSET_OFFSET);
+            String name = ItemType.getItemTypeName(type);
+
+            if (seen.contains(type)) {
+                check.problem("map_list has more than one entry for %s", name);
+            }
+            seen.add(type);
+
+            if (offset < previousEnd) {
+                check.problem("map_list entry for %s at 0x%x is out of order or overlaps the previous item",
+                        name, offset);
+            }
+            int itemSize = getItemSize(type, count);
+            if (itemSize == -1) {
+                check.problem("map_list has an entry for an unknown item type 0x%x", type);
+                previousEnd = offset + 1L;
+                continue;
+            }
+            previousEnd = offset + (long)itemSize * count;
+            if (offset < 0 || count < 0 || previousEnd > fileSize) {
+                check.problem("%s section at 0x%x with %d items is out of bounds", name, offset, count & 0xffffffffL);
+            }
+
+            switch (type) {
+                case ItemType.HEADER_ITEM:
+                    if (i != 0 || offset != 0 || count != 1) {
+                        check.problem("map_list entry for the header_item is wrong");
+                    }
+                    break;
+                case ItemType.STRING_ID_ITEM:
+                    checkMapItem(check, name, count, offset, stringCount, stringStart);
+                    break;
+                case ItemType.TYPE_ID_ITEM:
+                    checkMapItem(check, name, count, offset, typeCount, typeStart);
+                    break;
+                case ItemType.PROTO_ID_ITEM:
+                    checkMapItem(check, name, count, offset, protoCount, protoStart);
+                    break;
+                case ItemType.FIELD_ID_ITEM:
+                    checkMapItem(check, name, count, offset, fieldCount, fieldStart);
+                    break;
+                case ItemType.METHOD_ID_ITEM:
+                    checkMapItem(check, name, count, offset, methodCount, methodStart);
+                    break;
+                case ItemType.CLASS_DEF_ITEM:
+                    checkMapItem(check, name, count, offset, classCount, classStart);
+                    break;
+                case ItemType.MAP_LIST:
+                    if (offset != mapOffset || count != 1) {
+                        check.problem("map_list entry for the map_list is wrong");
+                    }
+                    break;
+                default:
+                    if (count > 0 && !isInData(offset)) {
+                        check.problem("%s section at 0x%x is not in the data section", name, offset);
+                    }
+            }
+        }
+
+        if (!seen.contains(ItemType.HEADER_ITEM)) {
+            check.problem("map_list has no entry for the header_item");
+        }
+        if (!seen.contains(ItemType.MAP_LIST)) {
+            check.problem("map_list has no entry for itself");
+        }
+        int[] counts = { stringCount, typeCount, protoCount, fieldCount, methodCount, classCount };
+        for (int type=ItemType.STRING_ID_ITEM; type<=ItemType.CLASS_DEF_ITEM; type++) {
+            if (counts[type - ItemType.STRING_ID_ITEM] > 0 && !seen.contains(type)) {
+                check.problem("map_list has no entry for %s", ItemType.getItemTypeName(type));
+            }
+        }
+    }
+
+    private static void checkMapItem(@NonNull Check check, @NonNull String name, int count, int offset,
+                                     int headerCount, int headerOffset) {
+        if (count != headerCount || offset != headerOffset) {
+            check.problem("map_list entry for %s (%d items at 0x%x) does not match the header (%d items at 0x%x)",
+                    name, count, offset, headerCount, headerOffset);
+        }
+    }
+
+    /**
+     * @return The size of an item of the given type, 1 for variable sized items, or -1 for unknown types
+     */
+    private static int getItemSize(int type, int count) {
+        switch (type) {
+            case ItemType.HEADER_ITEM:
+                return HeaderItem.ITEM_SIZE;
+            case ItemType.STRING_ID_ITEM:
+                return StringIdItem.ITEM_SIZE;
+            case ItemType.TYPE_ID_ITEM:
+                return TypeIdItem.ITEM_SIZE;
+            case ItemType.PROTO_ID_ITEM:
+                return ProtoIdItem.ITEM_SIZE;
+            case ItemType.FIELD_ID_ITEM:
+                return FieldIdItem.ITEM_SIZE;
+            case ItemType.METHOD_ID_ITEM:
+                return MethodIdItem.ITEM_SIZE;
+            case ItemType.CLASS_DEF_ITEM:
+                return ClassDefItem.ITEM_SIZE;
+            case ItemType.MAP_LIST:
+                return 4 + count * MapItem.ITEM_SIZE;
+            case ItemType.TYPE_LIST:
+            case ItemType.ANNOTATION_SET_REF_LIST:
+            case ItemType.ANNOTATION_SET_ITEM:
+            case ItemType.CLASS_DATA_ITEM:
+            case ItemType.CODE_ITEM:
+            case ItemType.STRING_DATA_ITEM:
+            case ItemType.DEBUG_INFO_ITEM:
+            case ItemType.ANNOTATION_ITEM:
+            case ItemType.ENCODED_ARRAY_ITEM:
+            case ItemType.ANNOTATION_DIRECTORY_ITEM:
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    private void checkStrings(@NonNull Check check, int start, int end) {
+        String previous = start == 0 ? null : readString(check, start - 1);
+        for (int i=start; i<end; i++) {
+            String string = readString(check, i);
+            if (previous != null && string != null && previous.compareTo(string) >= 0) {
+                check.problem("string_ids are not sorted at index %d", i);
+            }
+            previous = string;
+        }
+    }
+
+    private String readString(@NonNull Check check, int stringIndex) {
+        int stringDataOffset = dexBuf.readInt(stringStart + stringIndex * StringIdItem.ITEM_SIZE);
+        if (!isInData(stringDataOffset)) {
+            check.problem("string_data_item for string %d at 0x%x is out of bounds", stringIndex, stringDataOffset);
+            return null;
+        }
+        try {
+            BaseDexReader<?> reader = dexBuf.readerAt(stringDataOffset);
+            String string = reader.readString(reader.readSmallUleb128());
+            if (reader.getOffset() >= dataEnd || dexBuf.readByte(reader.getOffset()) != 0) {
+                check.problem("string_data_item for string %d at 0x%x is not terminated", stringIndex,
+                        stringDataOffset);
+            }
+            return string;
+        } catch (RuntimeException ex) {
+            check.problem("string_data_item for string %d at 0x%x is invalid: %s", stringIndex, stringDataOffset,
+                    ex.getMessage());
+            return null;
+        }
+    }
+
+    private void checkTypes(@NonNull Check check) {
+        int previous = -1;
+        for (int i=0; i<typeCount; i++) {
+            int stringIndex = dexBuf.readInt(typeStart + i * TypeIdItem.ITEM_SIZE);
+            checkIndex(check, "type_id_item", i, "string", stringIndex, stringCount);
+            if (stringIndex <= previous) {
+                check.problem("type_ids are not sorted at index %d", i);
+            }
+            previous = stringIndex;
+        }
+    }
+
+    private void checkProtos(@NonNull Check check) {
+        int previousReturnType = -1;
+        int[] previousParameters = null;
+        for (int i=0; i<protoCount; i++) {
+            int offset = protoStart + i * ProtoIdItem.ITEM_SIZE;
+            checkIndex(check, "proto_id_item", i, "string", dexBuf.readInt(offset + ProtoIdItem.SHORTY_OFFSET),
+                    stringCount);
+            int returnType = dexBuf.readInt(offset + ProtoIdItem.RETURN_TYPE_OFFSET);
+            checkIndex(check, "proto_id_item", i, "type", returnType, typeCount);
+            int[] parameters = readTypeList(check, "proto_id_item", i,
+                    dexBuf.readInt(offset + ProtoIdItem.PARAMETERS_OFFSET));
+
+            if (parameters != null && previousParameters != null) {
+                int order = returnType - previousReturnType;
+                if (order == 0) {
+                    order = compareTypeLists(parameters, previousParameters);
+                }
+                if (order <= 0) {
+                    check.problem("proto_ids are not sorted at index %d", i);
+                }
+            }
+            previousReturnType = returnType;
+            previousParameters = parameters;
+        }
+    }
+
+    private static int compareTypeLists(@NonNull int[] list1, @NonNull int[] list2) {
+        int length = Math.min(list1.length, list2.length);
+        for (int i=0; i<length; i++) {
+            if (list1[i] != list2[i]) {
+                return list1[i] - list2[i];
+            }
+        }
+        return list1.length - list2.length;
+    }
+
+    /**
+     * @return The types in the type_list, an empty array for a 0 offset, or null if the type_list is out of bounds
+     */
+    private int[] readTypeList(@NonNull Check check, @NonNull String itemName, int itemIndex, int typeListOffset) {
+        if (typeListOffset == 0) {
+            return new int[0];
+        }
+        if (typeListOffset % 4 != 0 || !isInData(typeListOffset) || typeListOffset + 4 > dataEnd) {
+            check.problem("type_list for %s %d at 0x%x is out of bounds", itemName, itemIndex, typeListOffset);
+            return null;
+        }
+        int size = dexBuf.readInt(typeListOffset);
+        if (size < 0 || typeListOffset + 4 + size * 2L > dataEnd) {
+            check.problem("type_list for %s %d at 0x%x is out of bounds", itemName, itemIndex, typeListOffset);
+            return null;
+        }
+        int[] types = new int[size];
+        for (int i=0; i<size; i++) {
+            types[i] = dexBuf.readUshort(typeListOffset + 4 + i * 2);
+            checkIndex(check, itemName, itemIndex, "type", types[i], typeCount);
+        }
+        return types;
+    }
+
+    private void checkFields(@NonNull Check check) {
+        long previous = -1;
+        for (int i=0; i<fieldCount; i++) {
+            int offset = fieldStart + i * FieldIdItem.ITEM_SIZE;
+            int classIndex = dexBuf.readUshort(offset + FieldIdItem.CLASS_OFFSET);
+            int typeIndex = dexBuf.readUshort(offset + FieldIdItem.TYPE_OFFSET);
+            int nameIndex = dexBuf.readInt(offset + FieldIdItem.NAME_OFFSET);
+            checkIndex(check, "field_id_item", i, "type", classIndex, typeCount);
+            checkIndex(check, "field_id_item", i, "type", typeIndex, typeCount);
+            checkIndex(check, "field_id_item", i, "string", nameIndex, stringCount);
+
+            // class and type are ushorts, and name is a valid index, so this orders by class, name, type
+            long key = ((long)classIndex << 48) | ((nameIndex & 0xffffffffL) << 16) | typeIndex;
+            if (key <= previous) {
+                check.problem("field_ids are not sorted at index %d", i);
+            }
+            previous = key;
+        }
+    }
+
+    private void checkMethods(@NonNull Check check) {
+        long previous = -1;
+        for (int i=0; i<methodCount; i++) {
+            int offset = methodStart + i * MethodIdItem.ITEM_SIZE;
+            int classIndex = dexBuf.readUshort(offset + MethodIdItem.CLASS_OFFSET);
+            int protoIndex = dexBuf.readUshort(offset + MethodIdItem.PROTO_OFFSET);
+            int nameIndex = dexBuf.readInt(offset + MethodIdItem.NAME_OFFSET);
+            checkIndex(check, "method_id_item", i, "type", classIndex, typeCount);
+            checkIndex(check, "method_id_item", i, "proto", protoIndex, protoCount);
+            checkIndex(check, "method_id_item", i, "string", nameIndex, stringCount);
+
+            long key = ((long)classIndex << 48) | ((nameIndex & 0xffffffffL) << 16) | protoIndex;
+            if (key <= previous) {
+                check.problem("method_ids are not sorted at index %d", i);
+            }
+            previous = key;
+        }
+    }
+
+    private void checkClassDefs(@NonNull Check check) {
+        int[] typeToClass = new int[Math.max(typeCount, 0)];
+        Arrays.fill(typeToClass, -1);
+        for (int i=0; i<classCount; i++) {
+            int classIndex = dexBuf.readInt(classStart + i * ClassDefItem.ITEM_SIZE + ClassDefItem.CLASS_OFFSET);
+            if (checkIndex(check, "class_def_item", i, "type", classIndex, typeCount)) {
+                if (typeToClass[classIndex] != -1) {
+                    check.problem("class_def_item %d defines the same class as class_def_item %d", i,
+                            typeToClass[classIndex]);
+                } else {
+                    typeToClass[classIndex] = i;
+                }
+            }
+        }
+
+        for (int i=0; i<classCount; i++) {
+            int offset = classStart + i * ClassDefItem.ITEM_SIZE;
+            int superclass = dexBuf.readInt(offset + ClassDefItem.SUPERCLASS_OFFSET);
+            if (superclass != -1 && checkIndex(check, "class_def_item", i, "type", superclass, typeCount)) {
+                checkDefinedBefore(check, i, typeToClass[superclass]);
+            }
+            int[] interfaces = readTypeList(check, "class_def_item", i,
+                    dexBuf.readInt(offset + ClassDefItem.INTERFACES_OFFSET));
+            if (interfaces != null) {
+                for (int iface: interfaces) {
+                    if (iface < typeCount) {
+                        checkDefinedBefore(check, i, typeToClass[iface]);
+                    }
+                }
+            }
+            int sourceFile = dexBuf.readInt(offset + ClassDefItem.SOURCE_FILE_OFFSET);
+            if (sourceFile != -1) {
+                checkIndex(check, "class_def_item", i, "string", sourceFile, stringCount);
+            }
+            checkDataOffset(check, i, "annotations_directory_item",
+                    dexBuf.readInt(offset + ClassDefItem.ANNOTATIONS_OFFSET));
+            checkDataOffset(check, i, "class_data_item", dexBuf.readInt(offset + ClassDefItem.CLASS_DATA_OFFSET));
+            checkDataOffset(check, i, "encoded_array_item",
+                    dexBuf.readInt(offset + ClassDefItem.STATIC_VALUES_OFFSET));
+        }
+    }
+
+    private static void checkDefinedBefore(@NonNull Check check, int classDefIndex, int superClassDefIndex) {
+        if (superClassDefIndex >= classDefIndex) {
+            check.problem("class_def_item %d comes before class_def_item %d, which it extends or implements",
+                    classDefIndex, superClassDefIndex);
+        }
+    }
+
+    private void checkDataOffset(@NonNull Check check, int classDefIndex, @NonNull String itemName, int offset) {
+        if (offset != 0 && !isInData(offset)) {
+            check.problem("%s for class_def_item %d at 0x%x is out of bounds", itemName, classDefIndex, offset);
+        }
+    }
+
+    private void checkClassData(@NonNull Check check, int start, int end) {
+        for (int i=start; i<end; i++) {
+            int classDataOffset = dexBuf.readInt(classStart + i * ClassDefItem.ITEM_SIZE +
+                    ClassDefItem.CLASS_DATA_OFFSET);
+            if (classDataOffset == 0 || !isInData(classDataOffset)) {
+                // a bad offset is reported by the class_defs check
+                continue;
+            }
+            try {
+                BaseDexReader<?> reader = dexBuf.readerAt(classDataOffset);
+                int staticFieldCount = reader.readSmallUleb128();
+                int instanceFieldCount = reader.readSmallUleb128();
+                int directMethodCount = reader.readSmallUleb128();
+                int virtualMethodCount = reader.readSmallUleb128();
+
+                checkEncodedFields(check, i, reader, staticFieldCount);
+                checkEncodedFields(check, i, reader, instanceFieldCount);
+                checkEncodedMethods(check, i, reader, directMethodCount);
+                checkEncodedMethods(check, i, reader, virtualMethodCount);
+                if (reader.getOffset() > dataEnd) {
+                    check.problem("class_data_item for class_def_item %d at 0x%x is out of bounds", i,
+                            classDataOffset);
+                }
+            } catch (RuntimeException ex) {
+                check.problem("class_data_item for class_def_item %d at 0x%x is invalid: %s", i, classDataOffset,
+                        ex.getMessage());
+            }
+        }
+    }
+
+    private void checkEncodedFields(@NonNull Check check, int classDefIndex, @NonNull BaseDexReader<?> reader,
+                                    int count) {
+        int fieldIndex = 0;
+        for (int i=0; i<count; i++) {
+            int diff = reader.readSmallUleb128();
+            if (i > 0 && diff == 0) {
+                check.problem("class_data_item for class_def_item %d has a duplicate field", classDefIndex);
+            }
+            fieldIndex += diff;
+            checkIndex(check, "class_data_item for class_def_item", classDefIndex, "field", fieldIndex, fieldCount);
+            reader.skipUleb128();
+        }
+    }
+
+    private void checkEncodedMethods(@NonNull Check check, int classDefIndex, @NonNull BaseDexReader<?> reader,
+                                     int count) {
+        int methodIndex = 0;
+        for (int i=0; i<count; i++) {
+            int diff = reader.readSmallUleb128();
+            if (i > 0 && diff == 0) {
+                check.problem("class_data_item for class_def_item %d has a duplicate method", classDefIndex);
+            }
+            methodIndex += diff;
+            checkIndex(check, "class_data_item for class_def_item", classDefIndex, "method", methodIndex,
+                    methodCount);
+            reader.skipUleb128();
+            int codeOffset = reader.readSmallUleb128();
+            if (codeOffset != 0) {
+                checkCodeItem(check, methodIndex, codeOffset);
+            }
+        }
+    }
+
+    private void checkCodeItem(@NonNull Check check, int methodIndex, int codeOffset) {
+        if (codeOffset % 4 != 0 || !isInData(codeOffset) ||
+                codeOffset + CodeItem.INSTRUCTION_START_OFFSET > dataEnd) {
+            check.problem("code_item for method %d at 0x%x is out of bounds", methodIndex, codeOffset);
+            return;
+        }
+        int registerCount = dexBuf.readUshort(codeOffset + CodeItem.REGISTERS_OFFSET);
+        int inCount = dexBuf.readUshort(codeOffset + CodeItem.INS_OFFSET);
+        int triesSize = dexBuf.readUshort(codeOffset + CodeItem.TRIES_SIZE_OFFSET);
+        int debugOffset = dexBuf.readInt(codeOffset + CodeItem.DEBUG_INFO_OFFSET);
+        int instructionCount = dexBuf.readInt(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+
+        if (inCount > registerCount) {
+            check.problem("code_item for method %d has more ins (%d) than registers (%d)", methodIndex, inCount,
+                    registerCount);
+        }
+        if (debugOffset != 0 && !isInData(debugOffset)) {
+            check.problem("debug_info_item for method %d at 0x%x is out of bounds", methodIndex, debugOffset);
+        }
+        long instructionsEnd = codeOffset + CodeItem.INSTRUCTION_START_OFFSET + (instructionCount & 0xffffffffL) * 2;
+        if (instructionsEnd > dataEnd) {
+            check.problem("instructions of method %d at 0x%x are out of bounds", methodIndex, codeOffset);
+            return;
+        }
+        if (triesSize == 0) {
+            return;
+        }
+
+        int triesStart = ((int)instructionsEnd + 3) & ~3;
+        int handlersStart = triesStart + triesSize * CodeItem.TryItem.ITEM_SIZE;
+        if (handlersStart >= dataEnd) {
+            check.problem("try_items of method %d at 0x%x are out of bounds", methodIndex, codeOffset);
+            return;
+        }
+
+        // the offsets of the encoded_catch_handlers, relative to the start of the encoded_catch_handler_list
+        BaseDexReader<?> reader = dexBuf.readerAt(handlersStart);
+        int handlerCount = reader.readSmallUleb128();
+        int[] handlerOffsets = new int[handlerCount];
+        for (int i=0; i<handlerCount; i++) {
+            handlerOffsets[i] = reader.getOffset() - handlersStart;
+            int handlerSize = reader.readSleb128();
+            for (int j=0; j<Math.abs(handlerSize); j++) {
+                checkIndex(check, "code_item for method", methodIndex, "type", reader.readSmallUleb128(), typeCount);
+                checkCodeAddress(check, methodIndex, reader.readSmallUleb128(), instructionCount);
+            }
+            if (handlerSize <= 0) {
+                checkCodeAddress(check, methodIndex, reader.readSmallUleb128(), instructionCount);
+            }
+        }
+        if (reader.getOffset() > dataEnd) {
+            check.problem("encoded_catch_handler_list of method %d at 0x%x is out of bounds", methodIndex,
+                    codeOffset);
+        }
+
+        long previousEnd = 0;
+        for (int i=0; i<triesSize; i++) {
+            int tryOffset = triesStart + i * CodeItem.TryItem.ITEM_SIZE;
+            int startAddress = dexBuf.readInt(tryOffset + CodeItem.TryItem.START_ADDRESS_OFFSET);
+            int codeUnitCount = dexBuf.readUshort(tryOffset + CodeItem.TryItem.CODE_UNIT_COUNT_OFFSET);
+            int handlerOffset = dexBuf.readUshort(tryOffset + CodeItem.TryItem.HANDLER_OFFSET);
+
+            long tryEnd = (startAddress & 0xffffffffL) + codeUnitCount;
+            if (startAddress < previousEnd || tryEnd > (instructionCount & 0xffffffffL)) {
+                check.problem("try_item %d of method %d is out of bounds or overlaps the previous one", i,
+                        methodIndex);
+            }
+            previousEnd = tryEnd;
+            if (Arrays.binarySearch(handlerOffsets, handlerOffset) < 0) {
+                check.problem("try_item %d of method %d does not point to an encoded_catch_handler", i,
+                        methodIndex);
+            }
+        }
+    }
+
+    private static void checkCodeAddress(@NonNull Check check, int methodIndex, int codeAddress,
+                                         int instructionCount) {
+        if ((codeAddress & 0xffffffffL) >= (instructionCount & 0xffffffffL)) {
+            check.problem("Exception handler of method %d at address %d is out of bounds", methodIndex, codeAddress);
+        }
+    }
+
+    private static boolean checkIndex(@NonNull Check check, @NonNull String itemName, int itemIndex,
+                                      @NonNull String indexType, int index, int count) {
+        if (index < 0 || index >= count) {
+            check.problem("%s %d has an invalid %s index: %d", itemName, itemIndex, indexType, index & 0xffffffffL);
+            return false;
+        }
+        return true;
+    }
+
+    private abstract static class Check implements Callable<List<String>> {
+        @NonNull private final String name;
+        @NonNull private final List<String> problems = new ArrayList<String>();
+
+        Check(@NonNull String name) {
+            this.name = name;
+        }
+
+        abstract void check();
+
+        void problem(@NonNull String format, Object... args) {
+            if (problems.size() < MAX_PROBLEMS) {
+                problems.add(String.format(format, args));
+            }
+        }
+
+        @Override public List<String> call() {
+            try {
+                check();
+            } catch (RuntimeException ex) {
+                problem("Exception while checking %s: %s", name, ex);
+            }
+            return problems;
+        }
+    }
+}
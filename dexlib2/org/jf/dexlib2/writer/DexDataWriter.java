@@ -255,8 +255,17 @@ public class DexDataWriter extends BufferedOutputStream {
 
         final byte[] buf = tempBuf;
 
+        // ASCII characters are written as is, and usually make up the whole string
         int bufPos = 0;
-        for (int i = 0; i < len; i++) {
+        while (bufPos < len) {
+            char c = string.charAt(bufPos);
+            if (c == 0 || c >= 0x80) {
+                break;
+            }
+            buf[bufPos++] = (byte) c;
+        }
+
+        for (int i = bufPos; i < len; i++) {
             char c = string.charAt(i);
             if ((c != 0) && (c < 0x80)) {
                 buf[bufPos++] = (byte) c;
@@ -31,10 +31,16 @@
 
 package org.jf.dexlib2.writer;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedLongs;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
@@ -45,6 +51,7 @@ import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction31c;
 import org.jf.dexlib2.dexbacked.raw.*;
 import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.ExceptionHandler;
 import org.jf.dexlib2.iface.TryBlock;
 import org.jf.dexlib2.iface.debug.DebugItem;
@@ -62,6 +69,7 @@ import org.jf.dexlib2.writer.io.DeferredOutputStream;
 import org.jf.dexlib2.writer.io.DeferredOutputStreamFactory;
 import org.jf.dexlib2.writer.io.DexDataStore;
 import org.jf.dexlib2.writer.io.MemoryDeferredOutputStream;
+import org.jf.dexlib2.writer.io.SegmentedDataStore;
 import org.jf.dexlib2.writer.util.TryListBuilder;
 import org.jf.util.CollectionUtils;
 import org.jf.util.ExceptionWithContext;
@@ -78,6 +86,9 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.zip.Adler32;
 
 public abstract class DexWriter<
@@ -125,6 +136,8 @@ public abstract class DexWriter<
     protected int codeSectionOffset = NO_OFFSET;
     protected int mapSectionOffset = NO_OFFSET;
 
+    private static final int CLASSES_PER_TASK = 64;
+
     protected int numEncodedArrayItems = 0;
     protected int numAnnotationSetRefItems = 0;
     protected int numAnnotationDirectoryItems = 0;
@@ -132,6 +145,9 @@ public abstract class DexWriter<
     protected int numCodeItemItems = 0;
     protected int numClassDataItems = 0;
 
+    private boolean skipDebugInfo = false;
+    @Nullable private Executor executor = null;
+
     public final StringSectionType stringSection;
     public final TypeSectionType typeSection;
     public final ProtoSectionType protoSection;
@@ -160,15 +176,87 @@ public abstract class DexWriter<
 
     @NonNull protected abstract SectionProvider getSectionProvider();
 
-    protected abstract void writeEncodedValue(@NonNull InternalEncodedValueWriter writer,
-                                              @NonNull EncodedValue encodedValue) throws IOException;
+    /**
+     * When set, no debug_info_items are written, and code items get a debug_info_off of 0. The line numbers, local
+     * variables and parameter names of the interned methods are dropped.
+     *
+     * This should be set before anything is interned, so that strings and types only used by debug info are not
+     * added to the dex file.
+     */
+    public void setSkipDebugInfo(boolean skipDebugInfo) {
+        this.skipDebugInfo = skipDebugInfo;
+    }
+
+    public boolean isSkipDebugInfo() {
+        return skipDebugInfo;
+    }
+
+    /**
+     * When set, the code and debug items of the classes are encoded on this executor, several classes at a time.
+     * The dex file that is written is the same as without an executor.
+     *
+     * The sections must not be modified while the dex file is being written.
+     */
+    public void setExecutor(@Nullable Executor executor) {
+        this.executor = executor;
+    }
+
+    @Nullable
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Interns a class into this dex file
+     *
+     * This may be called from several threads at once, but not while the dex file is being written, or while
+     * mark() or reset() is being called.
+     *
+     * @param classDef The class to intern
+     */
+    public abstract void internClass(@NonNull ClassDef classDef);
+
+    /**
+     * Interns the given classes, running several internClass() calls at once on the given executor, and returns once
+     * all of them are interned.
+     *
+     * The dex file that is written does not depend on the order in which the classes were interned.
+     *
+     * @param classes The classes to intern
+     * @param executor The executor to run the interning on
+     */
+    public void internClasses(@NonNull Iterable<? extends ClassDef> classes, @NonNull Executor executor) {
+        List<FutureTask<Void>> tasks = Lists.newArrayList();
+        for (final List<? extends ClassDef> batch: Iterables.partition(classes, CLASSES_PER_TASK)) {
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                @Override public void run() {
+                    for (ClassDef classDef: batch) {
+                        internClass(classDef);
+                    }
+                }
+            }, null);
+            tasks.add(task);
+            executor.execute(task);
+        }
 
-    private static Comparator<Map.Entry> toStringKeyComparator =
-            new Comparator<Map.Entry>() {
-                @Override public int compare(Entry o1, Entry o2) {
-                    return o1.getKey().toString().compareTo(o2.getKey().toString());
+        // wait for every task, so that nothing is still being interned if one of them failed
+        Throwable failure = null;
+        for (FutureTask<Void> task: tasks) {
+            try {
+                Futures.getUnchecked(task);
+            } catch (UncheckedExecutionException | ExecutionError ex) {
+                if (failure == null) {
+                    failure = ex.getCause();
                 }
-            };
+            }
+        }
+        if (failure != null) {
+            throw Throwables.propagate(failure);
+        }
+    }
+
+    protected abstract void writeEncodedValue(@NonNull InternalEncodedValueWriter writer,
+                                              @NonNull EncodedValue encodedValue) throws IOException;
 
     private static <T extends Comparable<? super T>> Comparator<Map.Entry<? extends T, ?>> comparableKeyComparator() {
         return new Comparator<Entry<? extends T, ?>>() {
@@ -274,14 +362,20 @@ public abstract class DexWriter<
                 indexWriter.close();
                 offsetWriter.close();
             }
-            updateSignature(dest);
-            updateChecksum(dest);
+            updateSignatureAndChecksum(dest);
         } finally {
             dest.close();
         }
     }
 
-    private void updateSignature(@NonNull DexDataStore dataStore) throws IOException {
+    /**
+     * Computes the signature and the checksum in one pass over the data after the signature. The checksum also covers
+     * the signature, so its adler32 is combined with the signature's once that is known.
+     *
+     * For a SegmentedDataStore, the adler32 of each segment is computed on the executor, if there is one, while the
+     * SHA-1 is computed on this thread.
+     */
+    private void updateSignatureAndChecksum(@NonNull DexDataStore dataStore) throws IOException {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance("SHA-1");
@@ -289,12 +383,54 @@ public abstract class DexWriter<
             throw new RuntimeException(ex);
         }
 
-        byte[] buffer = new byte[4 * 1024];
-        InputStream input = dataStore.readAt(HeaderItem.SIGNATURE_DATA_START_OFFSET);
-        int bytesRead = input.read(buffer);
-        while (bytesRead >= 0) {
-            md.update(buffer, 0, bytesRead);
-            bytesRead = input.read(buffer);
+        long dataLength = 0;
+        long dataAdler;
+        if (dataStore instanceof SegmentedDataStore) {
+            List<ByteBuffer> buffers = ((SegmentedDataStore)dataStore).getByteBuffers();
+            ByteBuffer first = buffers.get(0);
+            first.position(HeaderItem.SIGNATURE_DATA_START_OFFSET);
+            buffers.set(0, first.slice());
+
+            List<FutureTask<Long>> adlerTasks = Lists.newArrayList();
+            for (final ByteBuffer buffer: buffers) {
+                FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+                    @Override public Long call() {
+                        Adler32 a32 = new Adler32();
+                        a32.update(buffer.duplicate());
+                        return a32.getValue();
+                    }
+                });
+                adlerTasks.add(task);
+                if (executor != null) {
+                    executor.execute(task);
+                }
+            }
+
+            for (int i = 0; i < buffers.size(); i++) {
+                md.update(buffers.get(i).duplicate());
+                if (executor == null) {
+                    adlerTasks.get(i).run();
+                }
+            }
+
+            dataAdler = 1;
+            for (int i = 0; i < buffers.size(); i++) {
+                int length = buffers.get(i).remaining();
+                dataAdler = combineAdler32(dataAdler, Futures.getUnchecked(adlerTasks.get(i)), length);
+                dataLength += length;
+            }
+        } else {
+            Adler32 a32 = new Adler32();
+            byte[] buffer = new byte[256 * 1024];
+            InputStream input = dataStore.readAt(HeaderItem.SIGNATURE_DATA_START_OFFSET);
+            int bytesRead = input.read(buffer);
+            while (bytesRead >= 0) {
+                md.update(buffer, 0, bytesRead);
+                a32.update(buffer, 0, bytesRead);
+                dataLength += bytesRead;
+                bytesRead = input.read(buffer);
+            }
+            dataAdler = a32.getValue();
         }
 
         byte[] signature = md.digest();
@@ -306,25 +442,44 @@ public abstract class DexWriter<
         OutputStream output = dataStore.outputAt(HeaderItem.SIGNATURE_OFFSET);
         output.write(signature);
         output.close();
-    }
 
-    private void updateChecksum(@NonNull DexDataStore dataStore) throws IOException {
+        // the checksummed data starts with the signature
         Adler32 a32 = new Adler32();
-
-        byte[] buffer = new byte[4 * 1024];
-        InputStream input = dataStore.readAt(HeaderItem.CHECKSUM_DATA_START_OFFSET);
-        int bytesRead = input.read(buffer);
-        while (bytesRead >= 0) {
-            a32.update(buffer, 0, bytesRead);
-            bytesRead = input.read(buffer);
-        }
+        a32.update(signature);
+        int checksum = (int)combineAdler32(a32.getValue(), dataAdler, dataLength);
 
         // write checksum, utilizing logic in DexWriter to write the integer value properly
-        OutputStream output = dataStore.outputAt(HeaderItem.CHECKSUM_OFFSET);
-        DexDataWriter.writeInt(output, (int)a32.getValue());
+        output = dataStore.outputAt(HeaderItem.CHECKSUM_OFFSET);
+        DexDataWriter.writeInt(output, checksum);
         output.close();
     }
 
+    private static final int ADLER32_BASE = 65521;
+
+    /**
+     * @return The adler32 of two consecutive pieces of data, given the adler32 of each, as in zlib's adler32_combine
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER32_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER32_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER32_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER32_BASE - rem;
+        if (sum1 >= ADLER32_BASE) {
+            sum1 -= ADLER32_BASE;
+        }
+        if (sum1 >= ADLER32_BASE) {
+            sum1 -= ADLER32_BASE;
+        }
+        if (sum2 >= (ADLER32_BASE << 1)) {
+            sum2 -= (ADLER32_BASE << 1);
+        }
+        if (sum2 >= ADLER32_BASE) {
+            sum2 -= ADLER32_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
     private static DexDataWriter outputAt(DexDataStore dataStore, int filePosition) throws IOException {
         return new DexDataWriter(dataStore.outputAt(filePosition), filePosition);
     }
@@ -333,15 +488,20 @@ public abstract class DexWriter<
         stringIndexSectionOffset = indexWriter.getPosition();
         stringDataSectionOffset = offsetWriter.getPosition();
         int index = 0;
-        List<Entry<? extends StringKey, Integer>> stringEntries = Lists.newArrayList(stringSection.getItems());
-        Collections.sort(stringEntries, toStringKeyComparator);
+        Collection<? extends Entry<? extends StringKey, Integer>> entries = stringSection.getItems();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        StringItem<StringKey>[] stringItems = new StringItem[entries.size()];
+        int i = 0;
+        for (Map.Entry<? extends StringKey, Integer> entry: entries) {
+            stringItems[i++] = new StringItem<StringKey>(entry, entry.getKey().toString());
+        }
+        sortItems(stringItems);
 
-        for (Map.Entry<? extends StringKey, Integer>  entry: stringEntries) {
-            entry.setValue(index++);
+        for (StringItem<StringKey> item: stringItems) {
+            item.entry.setValue(index++);
             indexWriter.writeInt(offsetWriter.getPosition());
-            String stringValue = entry.getKey().toString();
-            offsetWriter.writeUleb128(stringValue.length());
-            offsetWriter.writeString(stringValue);
+            offsetWriter.writeUleb128(item.value.length());
+            offsetWriter.writeString(item.value);
             offsetWriter.write(0);
         }
     }
@@ -350,12 +510,18 @@ public abstract class DexWriter<
         typeSectionOffset = writer.getPosition();
         int index = 0;
 
-        List<Map.Entry<? extends TypeKey, Integer>> typeEntries = Lists.newArrayList(typeSection.getItems());
-        Collections.sort(typeEntries, toStringKeyComparator);
+        Collection<? extends Entry<? extends TypeKey, Integer>> entries = typeSection.getItems();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        StringItem<TypeKey>[] typeItems = new StringItem[entries.size()];
+        int i = 0;
+        for (Map.Entry<? extends TypeKey, Integer> entry: entries) {
+            typeItems[i++] = new StringItem<TypeKey>(entry, entry.getKey().toString());
+        }
+        sortItems(typeItems);
 
-        for (Map.Entry<? extends TypeKey, Integer> entry : typeEntries) {
-            entry.setValue(index++);
-            writer.writeInt(stringSection.getItemIndex(typeSection.getString(entry.getKey())));
+        for (StringItem<TypeKey> item: typeItems) {
+            item.entry.setValue(index++);
+            writer.writeInt(stringSection.getItemIndex(typeSection.getString(item.entry.getKey())));
         }
     }
 
@@ -363,14 +529,29 @@ public abstract class DexWriter<
         protoSectionOffset = writer.getPosition();
         int index = 0;
 
-        List<Map.Entry<? extends ProtoRefKey, Integer>> protoEntries = Lists.newArrayList(protoSection.getItems());
-        Collections.sort(protoEntries, DexWriter.<ProtoRefKey>comparableKeyComparator());
-
-        for (Map.Entry<? extends ProtoRefKey, Integer> entry: protoEntries) {
-            entry.setValue(index++);
+        // a proto is sorted by its return type and then its parameter types, so the key is their type indexes
+        Collection<? extends Entry<? extends ProtoRefKey, Integer>> entries = protoSection.getItems();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        IntArrayItem<ProtoRefKey>[] protoItems = new IntArrayItem[entries.size()];
+        int i = 0;
+        for (Map.Entry<? extends ProtoRefKey, Integer> entry: entries) {
             ProtoRefKey key = entry.getKey();
+            Collection<? extends TypeKey> parameters = typeListSection.getTypes(protoSection.getParameters(key));
+            int[] typeIndexes = new int[parameters.size() + 1];
+            typeIndexes[0] = typeSection.getItemIndex(protoSection.getReturnType(key));
+            int j = 1;
+            for (TypeKey parameter: parameters) {
+                typeIndexes[j++] = typeSection.getItemIndex(parameter);
+            }
+            protoItems[i++] = new IntArrayItem<ProtoRefKey>(entry, typeIndexes);
+        }
+        sortItems(protoItems);
+
+        for (IntArrayItem<ProtoRefKey> item: protoItems) {
+            item.entry.setValue(index++);
+            ProtoRefKey key = item.entry.getKey();
             writer.writeInt(stringSection.getItemIndex(protoSection.getShorty(key)));
-            writer.writeInt(typeSection.getItemIndex(protoSection.getReturnType(key)));
+            writer.writeInt(item.values[0]);
             writer.writeInt(typeListSection.getNullableItemOffset(protoSection.getParameters(key)));
         }
     }
@@ -379,15 +560,24 @@ public abstract class DexWriter<
         fieldSectionOffset = writer.getPosition();
         int index = 0;
 
-        List<Map.Entry<? extends FieldRefKey, Integer>> fieldEntries = Lists.newArrayList(fieldSection.getItems());
-        Collections.sort(fieldEntries, DexWriter.<FieldRefKey>comparableKeyComparator());
-
-        for (Map.Entry<? extends FieldRefKey, Integer> entry: fieldEntries) {
-            entry.setValue(index++);
+        Collection<? extends Entry<? extends FieldRefKey, Integer>> entries = fieldSection.getItems();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PackedItem<FieldRefKey>[] fieldItems = new PackedItem[entries.size()];
+        int i = 0;
+        for (Map.Entry<? extends FieldRefKey, Integer> entry: entries) {
             FieldRefKey key = entry.getKey();
-            writer.writeUshort(typeSection.getItemIndex(fieldSection.getDefiningClass(key)));
-            writer.writeUshort(typeSection.getItemIndex(fieldSection.getFieldType(key)));
-            writer.writeInt(stringSection.getItemIndex(fieldSection.getName(key)));
+            fieldItems[i++] = new PackedItem<FieldRefKey>(entry,
+                    typeSection.getItemIndex(fieldSection.getDefiningClass(key)),
+                    stringSection.getItemIndex(fieldSection.getName(key)),
+                    typeSection.getItemIndex(fieldSection.getFieldType(key)));
+        }
+        sortItems(fieldItems);
+
+        for (PackedItem<FieldRefKey> item: fieldItems) {
+            item.entry.setValue(index++);
+            writer.writeUshort(item.getFirst());
+            writer.writeUshort(item.getLast());
+            writer.writeInt(item.getMiddle());
         }
     }
 
@@ -395,15 +585,24 @@ public abstract class DexWriter<
         methodSectionOffset = writer.getPosition();
         int index = 0;
 
-        List<Map.Entry<? extends MethodRefKey, Integer>> methodEntries = Lists.newArrayList(methodSection.getItems());
-        Collections.sort(methodEntries, DexWriter.<MethodRefKey>comparableKeyComparator());
-
-        for (Map.Entry<? extends MethodRefKey, Integer> entry: methodEntries) {
-            entry.setValue(index++);
+        Collection<? extends Entry<? extends MethodRefKey, Integer>> entries = methodSection.getItems();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PackedItem<MethodRefKey>[] methodItems = new PackedItem[entries.size()];
+        int i = 0;
+        for (Map.Entry<? extends MethodRefKey, Integer> entry: entries) {
             MethodRefKey key = entry.getKey();
-            writer.writeUshort(typeSection.getItemIndex(methodSection.getDefiningClass(key)));
-            writer.writeUshort(protoSection.getItemIndex(methodSection.getPrototype(key)));
-            writer.writeInt(stringSection.getItemIndex(methodSection.getName(key)));
+            methodItems[i++] = new PackedItem<MethodRefKey>(entry,
+                    typeSection.getItemIndex(methodSection.getDefiningClass(key)),
+                    stringSection.getItemIndex(methodSection.getName(key)),
+                    protoSection.getItemIndex(methodSection.getPrototype(key)));
+        }
+        sortItems(methodItems);
+
+        for (PackedItem<MethodRefKey> item: methodItems) {
+            item.entry.setValue(index++);
+            writer.writeUshort(item.getFirst());
+            writer.writeUshort(item.getLast());
+            writer.writeInt(item.getMiddle());
         }
     }
 
@@ -411,12 +610,88 @@ public abstract class DexWriter<
         classIndexSectionOffset = indexWriter.getPosition();
         classDataSectionOffset = offsetWriter.getPosition();
 
-        List<Map.Entry<? extends ClassKey, Integer>> classEntries = Lists.newArrayList(classSection.getItems());
-        Collections.sort(classEntries, DexWriter.<ClassKey>comparableKeyComparator());
+        Collection<? extends Entry<? extends ClassKey, Integer>> entries = classSection.getItems();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        PackedItem<ClassKey>[] classItems = new PackedItem[entries.size()];
+        int i = 0;
+        for (Map.Entry<? extends ClassKey, Integer> entry: entries) {
+            classItems[i++] = new PackedItem<ClassKey>(entry,
+                    0, typeSection.getItemIndex(classSection.getType(entry.getKey())), 0);
+        }
+        sortItems(classItems);
 
         int index = 0;
-        for (Map.Entry<? extends ClassKey, Integer> key: classEntries) {
-            index = writeClass(indexWriter, offsetWriter, index, key);
+        for (PackedItem<ClassKey> item: classItems) {
+            index = writeClass(indexWriter, offsetWriter, index, item.entry);
+        }
+    }
+
+    /**
+     * Sorts the items of an index section, in parallel if there is an executor. Arrays.parallelSort only splits the
+     * work up for large arrays, and runs it on the common pool rather than on the executor.
+     */
+    private <T extends Comparable<? super T>> void sortItems(@NonNull T[] items) {
+        if (executor != null) {
+            Arrays.parallelSort(items);
+        } else {
+            Arrays.sort(items);
+        }
+    }
+
+    /**
+     * An item of the string or type section, with its string, so that it is only converted once.
+     */
+    private static class StringItem<Key> implements Comparable<StringItem<Key>> {
+        @NonNull final Map.Entry<? extends Key, Integer> entry;
+        @NonNull final String value;
+
+        StringItem(@NonNull Map.Entry<? extends Key, Integer> entry, @NonNull String value) {
+            this.entry = entry;
+            this.value = value;
+        }
+
+        @Override public int compareTo(@NonNull StringItem<Key> o) {
+            return value.compareTo(o.value);
+        }
+    }
+
+    /**
+     * An item of the field, method or class section, sorted by the indexes of what it refers to.
+     *
+     * The strings and types have already been sorted and indexed by the time these sections are written, so comparing
+     * their indexes gives the same order as comparing the strings themselves. The indexes are packed into a long as
+     * a ushort, a uint and a ushort, which are the sizes they are written with.
+     */
+    private static class PackedItem<Key> implements Comparable<PackedItem<Key>> {
+        @NonNull final Map.Entry<? extends Key, Integer> entry;
+        final long key;
+
+        PackedItem(@NonNull Map.Entry<? extends Key, Integer> entry, int first, int middle, int last) {
+            this.entry = entry;
+            this.key = ((long)checkUshort(first) << 48) | ((middle & 0xFFFFFFFFL) << 16) | checkUshort(last);
+        }
+
+        private static int checkUshort(int value) {
+            if (value < 0 || value > 0xFFFF) {
+                throw new ExceptionWithContext("Unsigned short value out of range: %d", value);
+            }
+            return value;
+        }
+
+        int getFirst() {
+            return (int)(key >>> 48);
+        }
+
+        int getMiddle() {
+            return (int)(key >>> 16);
+        }
+
+        int getLast() {
+            return (int)key & 0xFFFF;
+        }
+
+        @Override public int compareTo(@NonNull PackedItem<Key> o) {
+            return UnsignedLongs.compare(key, o.key);
         }
     }
 
@@ -529,15 +804,50 @@ public abstract class DexWriter<
     private void writeTypeLists(@NonNull DexDataWriter writer) throws IOException {
         writer.align();
         typeListSectionOffset = writer.getPosition();
-        for (Map.Entry<? extends TypeListKey, Integer> entry: typeListSection.getItems()) {
-            writer.align();
-            entry.setValue(writer.getPosition());
 
+        // the pools are unordered, so the items are sorted by content to get the same output however they were
+        // interned. Type lists compare by the indexes of their types, which are known by now.
+        List<IntArrayItem<TypeListKey>> typeListItems = Lists.newArrayList();
+        for (Map.Entry<? extends TypeListKey, Integer> entry: typeListSection.getItems()) {
             Collection<? extends TypeKey> types = typeListSection.getTypes(entry.getKey());
-            writer.writeInt(types.size());
+            int[] typeIndexes = new int[types.size()];
+            int i = 0;
             for (TypeKey typeKey: types) {
-                writer.writeUshort(typeSection.getItemIndex(typeKey));
+                typeIndexes[i++] = typeSection.getItemIndex(typeKey);
             }
+            typeListItems.add(new IntArrayItem<TypeListKey>(entry, typeIndexes));
+        }
+        Collections.sort(typeListItems);
+
+        for (IntArrayItem<TypeListKey> item: typeListItems) {
+            writer.align();
+            item.entry.setValue(writer.getPosition());
+
+            writer.writeInt(item.values.length);
+            for (int typeIndex: item.values) {
+                writer.writeUshort(typeIndex);
+            }
+        }
+    }
+
+    private static class IntArrayItem<Key> implements Comparable<IntArrayItem<Key>> {
+        @NonNull final Map.Entry<? extends Key, Integer> entry;
+        @NonNull final int[] values;
+
+        IntArrayItem(@NonNull Map.Entry<? extends Key, Integer> entry, @NonNull int[] values) {
+            this.entry = entry;
+            this.values = values;
+        }
+
+        @Override public int compareTo(@NonNull IntArrayItem<Key> o) {
+            int count = Math.min(values.length, o.values.length);
+            for (int i = 0; i < count; i++) {
+                int res = Ints.compare(values[i], o.values[i]);
+                if (res != 0) {
+                    return res;
+                }
+            }
+            return Ints.compare(values.length, o.values.length);
         }
     }
 
@@ -598,7 +908,11 @@ public abstract class DexWriter<
         InternalEncodedValueWriter encodedValueWriter = new InternalEncodedValueWriter(writer);
 
         annotationSectionOffset = writer.getPosition();
-        for (Map.Entry<? extends AnnotationKey, Integer> entry: annotationSection.getItems()) {
+        List<Map.Entry<? extends AnnotationKey, Integer>> annotationEntries =
+                Lists.newArrayList(annotationSection.getItems());
+        Collections.sort(annotationEntries, DexWriter.<Annotation>comparableKeyComparator());
+
+        for (Map.Entry<? extends AnnotationKey, Integer> entry: annotationEntries) {
             entry.setValue(writer.getPosition());
 
             AnnotationKey key = entry.getKey();
@@ -624,15 +938,27 @@ public abstract class DexWriter<
         if (shouldCreateEmptyAnnotationSet()) {
             writer.writeInt(0);
         }
+
+        // annotation sets compare by the offsets of their annotations, which were written in a fixed order
+        List<IntArrayItem<AnnotationSetKey>> annotationSetItems = Lists.newArrayList();
         for (Map.Entry<? extends AnnotationSetKey, Integer> entry: annotationSetSection.getItems()) {
             Collection<? extends AnnotationKey> annotations = Ordering.from(BaseAnnotation.BY_TYPE)
                     .immutableSortedCopy(annotationSetSection.getAnnotations(entry.getKey()));
+            int[] annotationOffsets = new int[annotations.size()];
+            int i = 0;
+            for (AnnotationKey annotationKey: annotations) {
+                annotationOffsets[i++] = annotationSection.getItemOffset(annotationKey);
+            }
+            annotationSetItems.add(new IntArrayItem<AnnotationSetKey>(entry, annotationOffsets));
+        }
+        Collections.sort(annotationSetItems);
 
+        for (IntArrayItem<AnnotationSetKey> item: annotationSetItems) {
             writer.align();
-            entry.setValue(writer.getPosition());
-            writer.writeInt(annotations.size());
-            for (AnnotationKey annotationKey: annotations) {
-                writer.writeInt(annotationSection.getItemOffset(annotationKey));
+            item.entry.setValue(writer.getPosition());
+            writer.writeInt(item.values.length);
+            for (int annotationOffset: item.values) {
+                writer.writeInt(annotationOffset);
             }
         }
     }
@@ -761,25 +1087,157 @@ public abstract class DexWriter<
     private static class CodeItemOffset<MethodKey> {
         @NonNull MethodKey method;
         int codeOffset;
+        int debugOffset;
 
-        private CodeItemOffset(@NonNull MethodKey method, int codeOffset) {
+        private CodeItemOffset(@NonNull MethodKey method, int codeOffset, int debugOffset) {
             this.codeOffset = codeOffset;
             this.method = method;
+            this.debugOffset = debugOffset;
         }
     }
 
     private void writeDebugAndCodeItems(@NonNull DexDataWriter offsetWriter,
                                         @NonNull DeferredOutputStream temp) throws IOException {
-        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
-        debugSectionOffset = offsetWriter.getPosition();
-        DebugWriter<StringKey, TypeKey> debugWriter =
-                new DebugWriter<StringKey, TypeKey>(stringSection, typeSection, offsetWriter);
+        if (executor != null) {
+            writeDebugAndCodeItemsInParallel(offsetWriter, temp, executor);
+            return;
+        }
 
+        debugSectionOffset = offsetWriter.getPosition();
         DexDataWriter codeWriter = new DexDataWriter(temp, 0);
 
         List<CodeItemOffset<MethodKey>> codeOffsets = Lists.newArrayList();
+        writeDebugAndCodeItems(classSection.getSortedClasses(), offsetWriter, codeWriter, codeOffsets);
 
-        for (ClassKey classKey: classSection.getSortedClasses()) {
+        offsetWriter.align();
+        codeSectionOffset = offsetWriter.getPosition();
+
+        codeWriter.close();
+        temp.writeTo(offsetWriter);
+        temp.close();
+
+        for (CodeItemOffset<MethodKey> codeOffset: codeOffsets) {
+            classSection.setCodeItemOffset(codeOffset.method, codeSectionOffset + codeOffset.codeOffset);
+        }
+        countDebugAndCodeItems(codeOffsets);
+    }
+
+    private class CodeItemChunk {
+        @NonNull final byte[] debugData;
+        @NonNull final byte[] codeData;
+        @NonNull final List<CodeItemOffset<MethodKey>> codeOffsets;
+
+        CodeItemChunk(@NonNull byte[] debugData, @NonNull byte[] codeData,
+                      @NonNull List<CodeItemOffset<MethodKey>> codeOffsets) {
+            this.debugData = debugData;
+            this.codeData = codeData;
+            this.codeOffsets = codeOffsets;
+        }
+    }
+
+    /**
+     * Encodes the debug and code items of each batch of classes into separate buffers, and writes each batch out as
+     * soon as it and the batches before it are done, so that only the batches that finish out of order are held in
+     * memory. The debug items go straight to the dex file, and the code items to temp, the same as the sequential
+     * writer does. The debug item offsets in each batch's code items are relative to the start of the debug section
+     * until the batch's place in it is known, and are fixed up as the code items are written.
+     */
+    private void writeDebugAndCodeItemsInParallel(@NonNull DexDataWriter offsetWriter,
+                                                  @NonNull DeferredOutputStream temp,
+                                                  @NonNull Executor executor) throws IOException {
+        debugSectionOffset = offsetWriter.getPosition();
+
+        List<FutureTask<CodeItemChunk>> tasks = Lists.newArrayList();
+        for (final List<? extends ClassKey> classes:
+                Iterables.partition(classSection.getSortedClasses(), CLASSES_PER_TASK)) {
+            FutureTask<CodeItemChunk> task = new FutureTask<CodeItemChunk>(new Callable<CodeItemChunk>() {
+                @Override public CodeItemChunk call() throws IOException {
+                    ByteArrayOutputStream debugBuf = new ByteArrayOutputStream();
+                    ByteArrayOutputStream codeBuf = new ByteArrayOutputStream();
+                    DexDataWriter debugDataWriter = new DexDataWriter(debugBuf, debugSectionOffset, 8 * 1024);
+                    DexDataWriter codeWriter = new DexDataWriter(codeBuf, 0, 8 * 1024);
+                    List<CodeItemOffset<MethodKey>> codeOffsets = Lists.newArrayList();
+                    writeDebugAndCodeItems(classes, debugDataWriter, codeWriter, codeOffsets);
+                    debugDataWriter.close();
+                    codeWriter.close();
+                    return new CodeItemChunk(debugBuf.toByteArray(), codeBuf.toByteArray(), codeOffsets);
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        DexDataWriter codeWriter = new DexDataWriter(temp, 0);
+        List<CodeItemOffset<MethodKey>> allCodeOffsets = Lists.newArrayList();
+        for (int i = 0; i < tasks.size(); i++) {
+            CodeItemChunk chunk;
+            try {
+                chunk = Futures.getUnchecked(tasks.get(i));
+            } catch (UncheckedExecutionException | ExecutionError ex) {
+                Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+                throw Throwables.propagate(ex.getCause());
+            }
+            // let the buffers go once they are written
+            tasks.set(i, null);
+
+            int debugDelta = offsetWriter.getPosition() - debugSectionOffset;
+            offsetWriter.write(chunk.debugData);
+
+            if (chunk.codeData.length == 0) {
+                continue;
+            }
+            // every code item is aligned, so the batch starts where the sequential writer would have put it
+            codeWriter.align();
+            int chunkOffset = codeWriter.getPosition();
+
+            ByteBuffer codeData = ByteBuffer.wrap(chunk.codeData).order(ByteOrder.LITTLE_ENDIAN);
+            for (CodeItemOffset<MethodKey> codeOffset: chunk.codeOffsets) {
+                if (codeOffset.debugOffset != NO_OFFSET) {
+                    codeData.putInt(codeOffset.codeOffset + CodeItem.DEBUG_INFO_OFFSET,
+                            codeOffset.debugOffset + debugDelta);
+                }
+                codeOffset.codeOffset += chunkOffset;
+            }
+            codeWriter.write(chunk.codeData);
+            allCodeOffsets.addAll(chunk.codeOffsets);
+        }
+
+        offsetWriter.align();
+        codeSectionOffset = offsetWriter.getPosition();
+
+        codeWriter.close();
+        temp.writeTo(offsetWriter);
+        temp.close();
+
+        for (CodeItemOffset<MethodKey> codeOffset: allCodeOffsets) {
+            classSection.setCodeItemOffset(codeOffset.method, codeSectionOffset + codeOffset.codeOffset);
+        }
+        countDebugAndCodeItems(allCodeOffsets);
+    }
+
+    private void countDebugAndCodeItems(@NonNull List<CodeItemOffset<MethodKey>> codeOffsets) {
+        numCodeItemItems = codeOffsets.size();
+        numDebugInfoItems = 0;
+        for (CodeItemOffset<MethodKey> codeOffset: codeOffsets) {
+            if (codeOffset.debugOffset != NO_OFFSET) {
+                numDebugInfoItems++;
+            }
+        }
+    }
+
+    /**
+     * Writes the debug items of the methods of the given classes to debugDataWriter, and their code items to
+     * codeWriter. The code item offsets are relative to the start of codeWriter.
+     */
+    private void writeDebugAndCodeItems(@NonNull Iterable<? extends ClassKey> classes,
+                                        @NonNull DexDataWriter debugDataWriter,
+                                        @NonNull DexDataWriter codeWriter,
+                                        @NonNull List<CodeItemOffset<MethodKey>> codeOffsets) throws IOException {
+        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
+        DebugWriter<StringKey, TypeKey> debugWriter =
+                new DebugWriter<StringKey, TypeKey>(stringSection, typeSection, debugDataWriter);
+
+        for (ClassKey classKey: classes) {
             Collection<? extends MethodKey> directMethods = classSection.getSortedDirectMethods(classKey);
             Collection<? extends MethodKey> virtualMethods = classSection.getSortedVirtualMethods(classKey);
 
@@ -793,12 +1251,16 @@ public abstract class DexWriter<
 
                 if (instructions != null && stringSection.hasJumboIndexes()) {
                     boolean needsFix = false;
-                    for (Instruction instruction: instructions) {
-                        if (instruction.getOpcode() == Opcode.CONST_STRING) {
-                            if (stringSection.getItemIndex(
-                                    (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
-                                needsFix = true;
-                                break;
+                    if (instructions instanceof RawInstructions) {
+                        needsFix = !((RawInstructions)instructions).hasSmallStringIndexes();
+                    } else {
+                        for (Instruction instruction: instructions) {
+                            if (instruction.getOpcode() == Opcode.CONST_STRING) {
+                                if (stringSection.getItemIndex(
+                                        (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
+                                    needsFix = true;
+                                    break;
+                                }
                             }
                         }
                     }
@@ -814,8 +1276,11 @@ public abstract class DexWriter<
                     }
                 }
 
-                int debugItemOffset = writeDebugItem(offsetWriter, debugWriter,
-                        classSection.getParameterNames(methodKey), debugItems);
+                int debugItemOffset = NO_OFFSET;
+                if (!skipDebugInfo) {
+                    debugItemOffset = writeDebugItem(debugDataWriter, debugWriter,
+                            classSection.getParameterNames(methodKey), debugItems);
+                }
                 int codeItemOffset;
                 try {
                     codeItemOffset = writeCodeItem(
@@ -826,21 +1291,10 @@ public abstract class DexWriter<
                 }
 
                 if (codeItemOffset != -1) {
-                    codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset));
+                    codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset, debugItemOffset));
                 }
             }
         }
-
-        offsetWriter.align();
-        codeSectionOffset = offsetWriter.getPosition();
-
-        codeWriter.close();
-        temp.writeTo(offsetWriter);
-        temp.close();
-
-        for (CodeItemOffset<MethodKey> codeOffset: codeOffsets) {
-            classSection.setCodeItemOffset(codeOffset.method, codeSectionOffset + codeOffset.codeOffset);
-        }
     }
 
     private void fixInstructions(@NonNull MutableMethodImplementation methodImplementation) {
@@ -882,8 +1336,6 @@ public abstract class DexWriter<
             return NO_OFFSET;
         }
 
-        numDebugInfoItems++;
-
         int debugItemOffset = writer.getPosition();
         int startingLineNumber = 0;
 
@@ -932,8 +1384,6 @@ public abstract class DexWriter<
             return -1;
         }
 
-        numCodeItemItems++;
-
         writer.align();
 
         int codeItemOffset = writer.getPosition();
@@ -951,20 +1401,25 @@ public abstract class DexWriter<
 
             int outParamCount = 0;
             int codeUnitCount = 0;
-            for (Instruction instruction: instructions) {
-                codeUnitCount += instruction.getCodeUnits();
-                if (instruction.getOpcode().referenceType == ReferenceType.METHOD) {
-                    ReferenceInstruction refInsn = (ReferenceInstruction)instruction;
-                    MethodReference methodRef = (MethodReference)refInsn.getReference();
-                    Opcode opcode = instruction.getOpcode();
-                    int paramCount;
-                    if (InstructionUtil.isInvokePolymorphic(opcode)) {
-                        paramCount = ((VariableRegisterInstruction)instruction).getRegisterCount();
-                    } else {
-                        paramCount = MethodUtil.getParameterRegisterCount(methodRef, InstructionUtil.isInvokeStatic(opcode));
-                    }
-                    if (paramCount > outParamCount) {
-                        outParamCount = paramCount;
+            if (instructions instanceof RawInstructions) {
+                outParamCount = ((RawInstructions)instructions).getOutParamCount();
+                codeUnitCount = ((RawInstructions)instructions).getCodeUnitCount();
+            } else {
+                for (Instruction instruction: instructions) {
+                    codeUnitCount += instruction.getCodeUnits();
+                    if (instruction.getOpcode().referenceType == ReferenceType.METHOD) {
+                        ReferenceInstruction refInsn = (ReferenceInstruction)instruction;
+                        MethodReference methodRef = (MethodReference)refInsn.getReference();
+                        Opcode opcode = instruction.getOpcode();
+                        int paramCount;
+                        if (InstructionUtil.isInvokePolymorphic(opcode)) {
+                            paramCount = ((VariableRegisterInstruction)instruction).getRegisterCount();
+                        } else {
+                            paramCount = MethodUtil.getParameterRegisterCount(methodRef, InstructionUtil.isInvokeStatic(opcode));
+                        }
+                        if (paramCount > outParamCount) {
+                            outParamCount = paramCount;
+                        }
                     }
                 }
             }
@@ -973,131 +1428,11 @@ public abstract class DexWriter<
             writer.writeUshort(tryBlocks.size());
             writer.writeInt(debugItemOffset);
 
-            InstructionWriter instructionWriter =
-                    InstructionWriter.makeInstructionWriter(opcodes, writer, stringSection, typeSection, fieldSection,
-                            methodSection, protoSection);
-
             writer.writeInt(codeUnitCount);
-            int codeOffset = 0;
-            for (Instruction instruction: instructions) {
-                try {
-                    switch (instruction.getOpcode().format) {
-                        case Format10t:
-                            instructionWriter.write((Instruction10t)instruction);
-                            break;
-                        case Format10x:
-                            instructionWriter.write((Instruction10x)instruction);
-                            break;
-                        case Format11n:
-                            instructionWriter.write((Instruction11n)instruction);
-                            break;
-                        case Format11x:
-                            instructionWriter.write((Instruction11x)instruction);
-                            break;
-                        case Format12x:
-                            instructionWriter.write((Instruction12x)instruction);
-                            break;
-                        case Format20bc:
-                            instructionWriter.write((Instruction20bc)instruction);
-                            break;
-                        case Format20t:
-                            instructionWriter.write((Instruction20t)instruction);
-                            break;
-                        case Format21c:
-                            instructionWriter.write((Instruction21c)instruction);
-                            break;
-                        case Format21ih:
-                            instructionWriter.write((Instruction21ih)instruction);
-                            break;
-                        case Format21lh:
-                            instructionWriter.write((Instruction21lh)instruction);
-                            break;
-                        case Format21s:
-                            instructionWriter.write((Instruction21s)instruction);
-                            break;
-                        case Format21t:
-                            instructionWriter.write((Instruction21t)instruction);
-                            break;
-                        case Format22b:
-                            instructionWriter.write((Instruction22b)instruction);
-                            break;
-                        case Format22c:
-                            instructionWriter.write((Instruction22c)instruction);
-                            break;
-                        case Format22cs:
-                            instructionWriter.write((Instruction22cs)instruction);
-                            break;
-                        case Format22s:
-                            instructionWriter.write((Instruction22s)instruction);
-                            break;
-                        case Format22t:
-                            instructionWriter.write((Instruction22t)instruction);
-                            break;
-                        case Format22x:
-                            instructionWriter.write((Instruction22x)instruction);
-                            break;
-                        case Format23x:
-                            instructionWriter.write((Instruction23x)instruction);
-                            break;
-                        case Format30t:
-                            instructionWriter.write((Instruction30t)instruction);
-                            break;
-                        case Format31c:
-                            instructionWriter.write((Instruction31c)instruction);
-                            break;
-                        case Format31i:
-                            instructionWriter.write((Instruction31i)instruction);
-                            break;
-                        case Format31t:
-                            instructionWriter.write((Instruction31t)instruction);
-                            break;
-                        case Format32x:
-                            instructionWriter.write((Instruction32x)instruction);
-                            break;
-                        case Format35c:
-                            instructionWriter.write((Instruction35c)instruction);
-                            break;
-                        case Format35mi:
-                            instructionWriter.write((Instruction35mi)instruction);
-                            break;
-                        case Format35ms:
-                            instructionWriter.write((Instruction35ms)instruction);
-                            break;
-                        case Format3rc:
-                            instructionWriter.write((Instruction3rc)instruction);
-                            break;
-                        case Format3rmi:
-                            instructionWriter.write((Instruction3rmi)instruction);
-                            break;
-                        case Format3rms:
-                            instructionWriter.write((Instruction3rms)instruction);
-                            break;
-                        case Format45cc:
-                            instructionWriter.write((Instruction45cc)instruction);
-                            break;
-                        case Format4rcc:
-                            instructionWriter.write((Instruction4rcc)instruction);
-                            break;
-                        case Format51l:
-                            instructionWriter.write((Instruction51l)instruction);
-                            break;
-                        case ArrayPayload:
-                            instructionWriter.write((ArrayPayload)instruction);
-                            break;
-                        case PackedSwitchPayload:
-                            instructionWriter.write((PackedSwitchPayload)instruction);
-                            break;
-                        case SparseSwitchPayload:
-                            instructionWriter.write((SparseSwitchPayload)instruction);
-                            break;
-                        default:
-                            throw new ExceptionWithContext("Unsupported instruction format: %s",
-                                    instruction.getOpcode().format);
-                    }
-                } catch (RuntimeException ex) {
-                    throw new ExceptionWithContext(ex, "Error while writing instruction at code offset 0x%x", codeOffset);
-                }
-                codeOffset += instruction.getCodeUnits();
+            if (instructions instanceof RawInstructions) {
+                ((RawInstructions)instructions).write(writer);
+            } else {
+                writeInstructions(writer, instructions);
             }
 
             if (tryBlocks.size() > 0) {
@@ -1175,6 +1510,135 @@ public abstract class DexWriter<
         return codeItemOffset;
     }
 
+    private void writeInstructions(@NonNull DexDataWriter writer,
+                                   @NonNull Iterable<? extends Instruction> instructions) throws IOException {
+        InstructionWriter instructionWriter =
+                InstructionWriter.makeInstructionWriter(opcodes, writer, stringSection, typeSection, fieldSection,
+                        methodSection, protoSection);
+
+        int codeOffset = 0;
+        for (Instruction instruction: instructions) {
+            try {
+                switch (instruction.getOpcode().format) {
+                    case Format10t:
+                        instructionWriter.write((Instruction10t)instruction);
+                        break;
+                    case Format10x:
+                        instructionWriter.write((Instruction10x)instruction);
+                        break;
+                    case Format11n:
+                        instructionWriter.write((Instruction11n)instruction);
+                        break;
+                    case Format11x:
+                        instructionWriter.write((Instruction11x)instruction);
+                        break;
+                    case Format12x:
+                        instructionWriter.write((Instruction12x)instruction);
+                        break;
+                    case Format20bc:
+                        instructionWriter.write((Instruction20bc)instruction);
+                        break;
+                    case Format20t:
+                        instructionWriter.write((Instruction20t)instruction);
+                        break;
+                    case Format21c:
+                        instructionWriter.write((Instruction21c)instruction);
+                        break;
+                    case Format21ih:
+                        instructionWriter.write((Instruction21ih)instruction);
+                        break;
+                    case Format21lh:
+                        instructionWriter.write((Instruction21lh)instruction);
+                        break;
+                    case Format21s:
+                        instructionWriter.write((Instruction21s)instruction);
+                        break;
+                    case Format21t:
+                        instructionWriter.write((Instruction21t)instruction);
+                        break;
+                    case Format22b:
+                        instructionWriter.write((Instruction22b)instruction);
+                        break;
+                    case Format22c:
+                        instructionWriter.write((Instruction22c)instruction);
+                        break;
+                    case Format22cs:
+                        instructionWriter.write((Instruction22cs)instruction);
+                        break;
+                    case Format22s:
+                        instructionWriter.write((Instruction22s)instruction);
+                        break;
+                    case Format22t:
+                        instructionWriter.write((Instruction22t)instruction);
+                        break;
+                    case Format22x:
+                        instructionWriter.write((Instruction22x)instruction);
+                        break;
+                    case Format23x:
+                        instructionWriter.write((Instruction23x)instruction);
+                        break;
+                    case Format30t:
+                        instructionWriter.write((Instruction30t)instruction);
+                        break;
+                    case Format31c:
+                        instructionWriter.write((Instruction31c)instruction);
+                        break;
+                    case Format31i:
+                        instructionWriter.write((Instruction31i)instruction);
+                        break;
+                    case Format31t:
+                        instructionWriter.write((Instruction31t)instruction);
+                        break;
+                    case Format32x:
+                        instructionWriter.write((Instruction32x)instruction);
+                        break;
+                    case Format35c:
+                        instructionWriter.write((Instruction35c)instruction);
+                        break;
+                    case Format35mi:
+                        instructionWriter.write((Instruction35mi)instruction);
+                        break;
+                    case Format35ms:
+                        instructionWriter.write((Instruction35ms)instruction);
+                        break;
+                    case Format3rc:
+                        instructionWriter.write((Instruction3rc)instruction);
+                        break;
+                    case Format3rmi:
+                        instructionWriter.write((Instruction3rmi)instruction);
+                        break;
+                    case Format3rms:
+                        instructionWriter.write((Instruction3rms)instruction);
+                        break;
+                    case Format45cc:
+                        instructionWriter.write((Instruction45cc)instruction);
+                        break;
+                    case Format4rcc:
+                        instructionWriter.write((Instruction4rcc)instruction);
+                        break;
+                    case Format51l:
+                        instructionWriter.write((Instruction51l)instruction);
+                        break;
+                    case ArrayPayload:
+                        instructionWriter.write((ArrayPayload)instruction);
+                        break;
+                    case PackedSwitchPayload:
+                        instructionWriter.write((PackedSwitchPayload)instruction);
+                        break;
+                    case SparseSwitchPayload:
+                        instructionWriter.write((SparseSwitchPayload)instruction);
+                        break;
+                    default:
+                        throw new ExceptionWithContext("Unsupported instruction format: %s",
+                                instruction.getOpcode().format);
+                }
+            } catch (RuntimeException ex) {
+                throw new ExceptionWithContext(ex, "Error while writing instruction at code offset 0x%x", codeOffset);
+            }
+            codeOffset += instruction.getCodeUnits();
+        }
+    }
+
     private int calcNumItems() {
         int numItems = 0;
 
@@ -0,0 +1,31 @@
+package org.jf.dexlib2.writer;
+
+import android.support.annotation.NonNull;
+
+import org.jf.dexlib2.iface.instruction.Instruction;
+
+import java.io.IOException;
+
+/**
+ * Instructions that are already encoded, and are written to the code_item by copying them and rewriting their index
+ * operands, instead of one instruction at a time.
+ *
+ * Iterating over the instructions still yields Instruction objects, for the cases where the code has to be changed
+ * before it is written.
+ */
+public interface RawInstructions extends Iterable<Instruction> {
+    int getCodeUnitCount();
+
+    /**
+     * @return The number of registers needed for the arguments of the largest invoke
+     */
+    int getOutParamCount();
+
+    /**
+     * @return true if all the strings referenced by const-string instructions have indexes that fit in 16 bits, so
+     * that none of them have to be turned into const-string/jumbo
+     */
+    boolean hasSmallStringIndexes();
+
+    void write(@NonNull DexDataWriter writer) throws IOException;
+}
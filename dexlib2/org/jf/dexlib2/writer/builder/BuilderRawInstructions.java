@@ -0,0 +1,187 @@
+package org.jf.dexlib2.writer.builder;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.iface.UpdateReference;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.InstructionUtil;
+import org.jf.dexlib2.util.MethodUtil;
+import org.jf.dexlib2.writer.DexDataWriter;
+import org.jf.dexlib2.writer.RawInstructions;
+import org.jf.util.ExceptionWithContext;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * The instructions of a dex-backed method that is copied into a DexBuilder unchanged. The references are interned
+ * through a {@link BuilderRemapTable}, and the instructions are written by copying their bytes from the source dex
+ * file and rewriting the index operands.
+ */
+class BuilderRawInstructions implements RawInstructions {
+    @NonNull private final DexBuilder dexBuilder;
+    @NonNull private final BuilderRemapTable remapTable;
+    @NonNull private final DexBackedMethodImplementation implementation;
+    private final int codeUnitCount;
+    private final int outParamCount;
+
+    private BuilderRawInstructions(@NonNull DexBuilder dexBuilder, @NonNull BuilderRemapTable remapTable,
+                                   @NonNull DexBackedMethodImplementation implementation, int codeUnitCount,
+                                   int outParamCount) {
+        this.dexBuilder = dexBuilder;
+        this.remapTable = remapTable;
+        this.implementation = implementation;
+        this.codeUnitCount = codeUnitCount;
+        this.outParamCount = outParamCount;
+    }
+
+    /**
+     * Interns the references of the method's instructions.
+     *
+     * @return The instructions, or null if they can't be copied as they are, because they contain odex or unknown
+     * instructions, or instructions that have a different opcode value in the dex file being written
+     */
+    @Nullable
+    static BuilderRawInstructions intern(@NonNull DexBuilder dexBuilder, @NonNull Opcodes opcodes,
+                                         @NonNull BuilderRemapTable remapTable,
+                                         @NonNull DexBackedMethodImplementation implementation) {
+        InstructionCursor cursor = implementation.getInstructionCursor();
+        boolean sameOpcodes = implementation.dexFile.getOpcodes() == opcodes;
+        int codeUnitCount = 0;
+        int outParamCount = 0;
+        while (cursor.next()) {
+            Opcode opcode = cursor.getOpcode();
+            if (opcode == null || !isCopyable(opcode.format)) {
+                return null;
+            }
+            if (!sameOpcodes) {
+                Short opcodeValue = opcodes.getOpcodeValue(opcode);
+                if (opcodeValue == null || opcodeValue != cursor.getOpcodeValue()) {
+                    return null;
+                }
+            }
+            codeUnitCount += cursor.getCodeUnits();
+
+            if (opcode.referenceType != ReferenceType.NONE) {
+                BuilderReference reference = remapTable.intern(opcode.referenceType, cursor.getReferenceIndex());
+                if (opcode.referenceType == ReferenceType.METHOD) {
+                    int paramCount;
+                    if (InstructionUtil.isInvokePolymorphic(opcode)) {
+                        paramCount = cursor.getRegisterCount();
+                    } else {
+                        paramCount = MethodUtil.getParameterRegisterCount((MethodReference) reference,
+                                InstructionUtil.isInvokeStatic(opcode));
+                    }
+                    if (paramCount > outParamCount) {
+                        outParamCount = paramCount;
+                    }
+                }
+                if (hasSecondReference(opcode.format)) {
+                    remapTable.intern(opcode.referenceType2, cursor.getReferenceIndex2());
+                }
+            }
+        }
+        return new BuilderRawInstructions(dexBuilder, remapTable, implementation, codeUnitCount, outParamCount);
+    }
+
+    private static boolean isCopyable(@NonNull Format format) {
+        switch (format) {
+            case Format20bc:
+            case Format22cs:
+            case Format35mi:
+            case Format35ms:
+            case Format3rmi:
+            case Format3rms:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean hasSecondReference(@NonNull Format format) {
+        return format == Format.Format45cc || format == Format.Format4rcc;
+    }
+
+    @Override public int getCodeUnitCount() {
+        return codeUnitCount;
+    }
+
+    @Override public int getOutParamCount() {
+        return outParamCount;
+    }
+
+    @Override public boolean hasSmallStringIndexes() {
+        InstructionCursor cursor = implementation.getInstructionCursor();
+        while (cursor.next()) {
+            if (cursor.getOpcode() == Opcode.CONST_STRING &&
+                    remapTable.getIndex(ReferenceType.STRING, cursor.getReferenceIndex()) > 0xFFFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override public void write(@NonNull DexDataWriter writer) throws IOException {
+        InstructionCursor cursor = implementation.getInstructionCursor();
+        int startOffset = cursor.getStartOffset();
+        byte[] code = implementation.dexFile.readBytes(startOffset, codeUnitCount * 2);
+
+        while (cursor.next()) {
+            Opcode opcode = cursor.getOpcode();
+            if (opcode == null || opcode.referenceType == ReferenceType.NONE) {
+                continue;
+            }
+            int operandOffset = cursor.getOffset() - startOffset + 2;
+            int index = remapTable.getIndex(opcode.referenceType, cursor.getReferenceIndex());
+            if (opcode.format == Format.Format31c) {
+                putInt(code, operandOffset, index);
+            } else {
+                putUshort(code, operandOffset, index, cursor.getOffset());
+            }
+            if (hasSecondReference(opcode.format)) {
+                putUshort(code, operandOffset + 4,
+                        remapTable.getIndex(opcode.referenceType2, cursor.getReferenceIndex2()), cursor.getOffset());
+            }
+        }
+        writer.write(code);
+    }
+
+    private static void putUshort(@NonNull byte[] code, int offset, int value, int instructionOffset) {
+        if ((value & 0xFFFF0000) != 0) {
+            throw new ExceptionWithContext("Index of the instruction at offset 0x%x is too large: %d",
+                    instructionOffset, value);
+        }
+        code[offset] = (byte) value;
+        code[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(@NonNull byte[] code, int offset, int value) {
+        code[offset] = (byte) value;
+        code[offset + 1] = (byte) (value >>> 8);
+        code[offset + 2] = (byte) (value >>> 16);
+        code[offset + 3] = (byte) (value >>> 24);
+    }
+
+    @NonNull @Override public Iterator<Instruction> iterator() {
+        return Iterators.transform(implementation.getInstructions().iterator(),
+                new Function<Instruction, Instruction>() {
+                    @Override public Instruction apply(Instruction instruction) {
+                        if (instruction instanceof UpdateReference) {
+                            ((UpdateReference) instruction).updateReference(dexBuilder);
+                        }
+                        return instruction;
+                    }
+                });
+    }
+}
@@ -0,0 +1,133 @@
+package org.jf.dexlib2.writer.builder;
+
+import android.support.annotation.NonNull;
+
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodProtoReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
+import org.jf.util.ExceptionWithContext;
+
+/**
+ * Maps the string, type, field, method and proto indexes of a dex file that is being copied into a DexBuilder to
+ * the references they were interned as, so each one is only looked up once.
+ *
+ * Classes may be interned from several threads at once. Two threads can race to fill the same slot, but the pools
+ * hand both of them the same reference, so either write is correct.
+ */
+class BuilderRemapTable {
+    @NonNull private final DexBuilder dexBuilder;
+    @NonNull final DexBackedDexFile dexFile;
+
+    @NonNull private final BuilderStringReference[] strings;
+    @NonNull private final BuilderTypeReference[] types;
+    @NonNull private final BuilderFieldReference[] fields;
+    @NonNull private final BuilderMethodReference[] methods;
+    @NonNull private final BuilderMethodProtoReference[] protos;
+
+    BuilderRemapTable(@NonNull DexBuilder dexBuilder, @NonNull DexBackedDexFile dexFile) {
+        this.dexBuilder = dexBuilder;
+        this.dexFile = dexFile;
+        this.strings = new BuilderStringReference[dexFile.getStringCount()];
+        this.types = new BuilderTypeReference[dexFile.getTypeCount()];
+        this.fields = new BuilderFieldReference[dexFile.getFieldCount()];
+        this.methods = new BuilderMethodReference[dexFile.getMethodCount()];
+        this.protos = new BuilderMethodProtoReference[dexFile.getProtoCount()];
+    }
+
+    /**
+     * Interns the item with the given index in the source dex file, if it has not been interned yet.
+     */
+    @NonNull
+    BuilderReference intern(int referenceType, int index) {
+        switch (referenceType) {
+            case ReferenceType.STRING: {
+                checkIndex(index, strings.length, referenceType);
+                BuilderStringReference reference = strings[index];
+                if (reference == null) {
+                    reference = dexBuilder.internStringReference(dexFile.getString(index));
+                    strings[index] = reference;
+                }
+                return reference;
+            }
+            case ReferenceType.TYPE: {
+                checkIndex(index, types.length, referenceType);
+                BuilderTypeReference reference = types[index];
+                if (reference == null) {
+                    reference = dexBuilder.internTypeReference(dexFile.getType(index));
+                    types[index] = reference;
+                }
+                return reference;
+            }
+            case ReferenceType.FIELD: {
+                checkIndex(index, fields.length, referenceType);
+                BuilderFieldReference reference = fields[index];
+                if (reference == null) {
+                    reference = dexBuilder.internFieldReference(new DexBackedFieldReference(dexFile, index));
+                    fields[index] = reference;
+                }
+                return reference;
+            }
+            case ReferenceType.METHOD: {
+                checkIndex(index, methods.length, referenceType);
+                BuilderMethodReference reference = methods[index];
+                if (reference == null) {
+                    reference = dexBuilder.internMethodReference(new DexBackedMethodReference(dexFile, index));
+                    methods[index] = reference;
+                }
+                return reference;
+            }
+            case ReferenceType.METHOD_PROTO: {
+                checkIndex(index, protos.length, referenceType);
+                BuilderMethodProtoReference reference = protos[index];
+                if (reference == null) {
+                    reference = dexBuilder.internMethodProtoReference(
+                            new DexBackedMethodProtoReference(dexFile, index));
+                    protos[index] = reference;
+                }
+                return reference;
+            }
+            default:
+                throw new ExceptionWithContext("Invalid reference type: %d", referenceType);
+        }
+    }
+
+    /**
+     * @return The index in the dex file being written of an item that has been interned with
+     * {@link #intern(int, int)}
+     */
+    int getIndex(int referenceType, int index) {
+        BuilderReference reference;
+        switch (referenceType) {
+            case ReferenceType.STRING:
+                reference = strings[index];
+                break;
+            case ReferenceType.TYPE:
+                reference = types[index];
+                break;
+            case ReferenceType.FIELD:
+                reference = fields[index];
+                break;
+            case ReferenceType.METHOD:
+                reference = methods[index];
+                break;
+            case ReferenceType.METHOD_PROTO:
+                reference = protos[index];
+                break;
+            default:
+                throw new ExceptionWithContext("Invalid reference type: %d", referenceType);
+        }
+        if (reference == null) {
+            throw new ExceptionWithContext("%s %d has not been interned", ReferenceType.toString(referenceType),
+                    index);
+        }
+        return reference.getIndex();
+    }
+
+    private static void checkIndex(int index, int count, int referenceType) {
+        if (index < 0 || index >= count) {
+            throw new ExceptionWithContext("Invalid %s index: %d", ReferenceType.toString(referenceType), index);
+        }
+    }
+}
@@ -38,11 +38,14 @@ import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ValueType;
 import org.jf.dexlib2.base.BaseExceptionHandler;
 import org.jf.dexlib2.base.BaseTryBlock;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.iface.AnnotationElement;
 import org.jf.dexlib2.iface.ClassDef;
@@ -58,6 +61,7 @@ import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.reference.*;
 import org.jf.dexlib2.iface.value.*;
 import org.jf.dexlib2.writer.DexWriter;
+import org.jf.dexlib2.writer.RawInstructions;
 import org.jf.dexlib2.writer.builder.BuilderEncodedValues.*;
 import org.jf.util.ExceptionWithContext;
 
@@ -66,6 +70,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 
 public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringReference, BuilderTypeReference,
@@ -231,7 +236,7 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
     private BuilderMethodParameter internMethodParameter(@NonNull MethodParameter methodParameter) {
         return new BuilderMethodParameter(
                 typeSection.internType(methodParameter.getType()),
-                stringSection.internNullableString(methodParameter.getName()),
+                isSkipDebugInfo() ? null : stringSection.internNullableString(methodParameter.getName()),
                 annotationSetSection.internAnnotationSet(methodParameter.getAnnotations()));
     }
 
@@ -300,6 +305,9 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
 
     private boolean ignoreMethodAndFieldError = false;
 
+    @NonNull
+    private final ConcurrentMap<DexBackedDexFile, BuilderRemapTable> remapTables = Maps.newConcurrentMap();
+
     public void setIgnoreMethodAndFieldError(boolean ignoreMethodAndFieldError) {
         this.ignoreMethodAndFieldError = ignoreMethodAndFieldError;
     }
@@ -350,29 +358,63 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
                 classDef.getAnnotations(), fields, methods);
     }
 
+    @Override
+    public void internClass(@NonNull ClassDef classDef) {
+        internClassDef(classDef);
+    }
+
+    @NonNull
+    private BuilderRemapTable getRemapTable(@NonNull DexBackedDexFile dexFile) {
+        BuilderRemapTable remapTable = remapTables.get(dexFile);
+        if (remapTable == null) {
+            remapTable = new BuilderRemapTable(this, dexFile);
+            BuilderRemapTable prev = remapTables.putIfAbsent(dexFile, remapTable);
+            if (prev != null) {
+                remapTable = prev;
+            }
+        }
+        return remapTable;
+    }
+
     private MethodImplementation copyMethodImplementation(MethodImplementation implementation) {
         MethodImplementation methodImplementation;
         if (implementation == null)
             methodImplementation = null;
         else {
             final int registerCount = implementation.getRegisterCount();
-            final ArrayList<Instruction> instructions = new ArrayList<>();
+            final Iterable<? extends Instruction> instructions;
             final ArrayList<BaseTryBlock<ExceptionHandler>> tryBlocks;
             final ArrayList<DebugItem> debugItems = new ArrayList<>();
-            for (Instruction instruction : implementation.getInstructions()) {
-                if (instruction instanceof UpdateReference)
-                    ((UpdateReference) instruction).updateReference(this);
-                instructions.add(instruction);
+
+            // Code from a dex file is copied as it is, with only its indexes rewritten, unless it can't be
+            RawInstructions rawInstructions = null;
+            if (implementation instanceof DexBackedMethodImplementation) {
+                DexBackedMethodImplementation dexBackedImplementation = (DexBackedMethodImplementation) implementation;
+                rawInstructions = BuilderRawInstructions.intern(this, opcodes,
+                        getRemapTable(dexBackedImplementation.dexFile), dexBackedImplementation);
+            }
+            if (rawInstructions != null) {
+                instructions = rawInstructions;
+            } else {
+                ArrayList<Instruction> instructionList = new ArrayList<>();
+                for (Instruction instruction : implementation.getInstructions()) {
+                    if (instruction instanceof UpdateReference)
+                        ((UpdateReference) instruction).updateReference(this);
+                    instructionList.add(instruction);
+                }
+                instructions = instructionList;
             }
             List<? extends TryBlock> tempTryBlocks = implementation.getTryBlocks();
             tryBlocks = new ArrayList<>(tempTryBlocks.size());
             for (TryBlock tryBlock : tempTryBlocks)
                 tryBlocks.add(copyTryBlock(tryBlock));
 
-            for (DebugItem debugItem : implementation.getDebugItems()) {
-                if (debugItem instanceof UpdateReference)
-                    ((UpdateReference) debugItem).updateReference(this);
-                debugItems.add(debugItem);
+            if (!isSkipDebugInfo()) {
+                for (DebugItem debugItem : implementation.getDebugItems()) {
+                    if (debugItem instanceof UpdateReference)
+                        ((UpdateReference) debugItem).updateReference(this);
+                    debugItems.add(debugItem);
+                }
             }
 
             methodImplementation = new MethodImplementation() {
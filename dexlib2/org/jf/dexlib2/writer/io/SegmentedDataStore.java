@@ -0,0 +1,192 @@
+package org.jf.dexlib2.writer.io;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory DexDataStore made of fixed size segments, so that it never has to copy what has already been written
+ * when it grows.
+ *
+ * The contents can be written out with {@link #writeTo(OutputStream)} or viewed with {@link #getByteBuffers()}
+ * without putting them into one array first. Once the contents are no longer needed, {@link #release()} returns the
+ * segments to a shared pool, where the next store can pick them up.
+ */
+public class SegmentedDataStore implements DexDataStore {
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_SEGMENTS = 256;
+    private static final ConcurrentLinkedQueue<byte[]> segmentPool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooledSegmentCount = new AtomicInteger();
+
+    @NonNull private final ArrayList<byte[]> segments = new ArrayList<byte[]>();
+    private int length = 0;
+
+    public int getSize() {
+        return length;
+    }
+
+    @NonNull
+    private static byte[] allocateSegment() {
+        byte[] segment = segmentPool.poll();
+        if (segment == null) {
+            return new byte[SEGMENT_SIZE];
+        }
+        pooledSegmentCount.decrementAndGet();
+        Arrays.fill(segment, (byte)0);
+        return segment;
+    }
+
+    private void ensureCapacity(int size) {
+        while (segments.size() * (long)SEGMENT_SIZE < size) {
+            segments.add(allocateSegment());
+        }
+    }
+
+    @NonNull
+    @Override
+    public OutputStream outputAt(final int offset) {
+        return new OutputStream() {
+            private int position = offset;
+
+            @Override
+            public void write(int b) throws IOException {
+                ensureCapacity(position + 1);
+                segments.get(position / SEGMENT_SIZE)[position % SEGMENT_SIZE] = (byte)b;
+                position++;
+                if (position > length) {
+                    length = position;
+                }
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                ensureCapacity(position + len);
+                while (len > 0) {
+                    int segmentOffset = position % SEGMENT_SIZE;
+                    int count = Math.min(len, SEGMENT_SIZE - segmentOffset);
+                    System.arraycopy(b, off, segments.get(position / SEGMENT_SIZE), segmentOffset, count);
+                    position += count;
+                    off += count;
+                    len -= count;
+                }
+                if (position > length) {
+                    length = position;
+                }
+            }
+        };
+    }
+
+    @NonNull
+    @Override
+    public InputStream readAt(final int offset) {
+        return new InputStream() {
+            private int position = offset;
+
+            @Override
+            public int read() throws IOException {
+                if (position >= length) {
+                    return -1;
+                }
+                int b = segments.get(position / SEGMENT_SIZE)[position % SEGMENT_SIZE] & 0xff;
+                position++;
+                return b;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= length) {
+                    return -1;
+                }
+                int readLength = Math.min(len, length - position);
+                int remaining = readLength;
+                while (remaining > 0) {
+                    int segmentOffset = position % SEGMENT_SIZE;
+                    int count = Math.min(remaining, SEGMENT_SIZE - segmentOffset);
+                    System.arraycopy(segments.get(position / SEGMENT_SIZE), segmentOffset, b, off, count);
+                    position += count;
+                    off += count;
+                    remaining -= count;
+                }
+                return readLength;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                int skipLength = (int)Math.max(0, Math.min(n, length - position));
+                position += skipLength;
+                return skipLength;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return Math.max(0, length - position);
+            }
+        };
+    }
+
+    /**
+     * @return Views of the written bytes, one per segment, in order. They share the segments, so they must not be
+     * written to.
+     */
+    @NonNull
+    public List<ByteBuffer> getByteBuffers() {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(segments.size());
+        for (int offset = 0; offset < length; offset += SEGMENT_SIZE) {
+            buffers.add(ByteBuffer.wrap(segments.get(offset / SEGMENT_SIZE), 0,
+                    Math.min(SEGMENT_SIZE, length - offset)).slice());
+        }
+        return buffers;
+    }
+
+    /**
+     * Writes the written bytes to the given stream, one segment at a time.
+     */
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+        for (int offset = 0; offset < length; offset += SEGMENT_SIZE) {
+            out.write(segments.get(offset / SEGMENT_SIZE), 0, Math.min(SEGMENT_SIZE, length - offset));
+        }
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        for (int offset = 0; offset < length; offset += SEGMENT_SIZE) {
+            System.arraycopy(segments.get(offset / SEGMENT_SIZE), 0, bytes, offset,
+                    Math.min(SEGMENT_SIZE, length - offset));
+        }
+        return bytes;
+    }
+
+    /**
+     * Empties this store and gives its segments to the pool. Any buffer returned by getByteBuffers() must not be
+     * used after this.
+     */
+    public void release() {
+        for (byte[] segment: segments) {
+            if (pooledSegmentCount.incrementAndGet() > MAX_POOLED_SEGMENTS) {
+                pooledSegmentCount.decrementAndGet();
+                break;
+            }
+            segmentPool.offer(segment);
+        }
+        segments.clear();
+        length = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // no-op
+    }
+}
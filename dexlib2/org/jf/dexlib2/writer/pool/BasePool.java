@@ -35,6 +35,7 @@ import android.support.annotation.NonNull;
 
 import com.google.common.collect.Maps;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -42,7 +43,7 @@ public class BasePool<Key, Value> implements Markable {
     @NonNull
     protected final DexPool dexPool;
     @NonNull
-    protected final Map<Key, Value> internedItems = Maps.newLinkedHashMap();
+    protected final Map<Key, Value> internedItems = Collections.synchronizedMap(Maps.<Key, Value>newLinkedHashMap());
     private int markedItemCount = -1;
 
     public BasePool(@NonNull DexPool dexPool) {
@@ -62,13 +63,15 @@ public class BasePool<Key, Value> implements Markable {
             return;
         }
 
-        Iterator<Key> keys = internedItems.keySet().iterator();
-        for (int i = 0; i < markedItemCount; i++) {
-            keys.next();
-        }
-        while (keys.hasNext()) {
-            keys.next();
-            keys.remove();
+        synchronized (internedItems) {
+            Iterator<Key> keys = internedItems.keySet().iterator();
+            for (int i = 0; i < markedItemCount; i++) {
+                keys.next();
+            }
+            while (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
         }
     }
 
@@ -133,7 +133,9 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
             }
             dexPool.methodSection.intern(method);
             internCode(method);
-            internDebug(method);
+            if (!dexPool.isSkipDebugInfo()) {
+                internDebug(method);
+            }
             dexPool.annotationSetSection.intern(method.getAnnotations());
 
             for (MethodParameter parameter : method.getParameters()) {
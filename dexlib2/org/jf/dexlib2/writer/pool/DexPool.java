@@ -99,7 +99,8 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
      *
      * @param classDef The class to intern
      */
-    public void internClass(ClassDef classDef) {
+    @Override
+    public void internClass(@NonNull ClassDef classDef) {
         classSection.intern(classDef);
     }
 
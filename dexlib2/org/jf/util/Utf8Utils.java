@@ -27,6 +27,9 @@ package org.jf.util;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Constants of type <code>CONSTANT_Utf8_info</code>.
  */
@@ -41,10 +44,25 @@ public final class Utf8Utils {
      */
     public static byte[] stringToUtf8Bytes(String string) {
         int len = string.length();
+        int asciiLength = 0;
+        while (asciiLength < len) {
+            char c = string.charAt(asciiLength);
+            if (c == 0 || c >= 0x80) {
+                break;
+            }
+            asciiLength++;
+        }
+        if (asciiLength == len) {
+            return string.getBytes(StandardCharsets.ISO_8859_1);
+        }
+
         byte[] bytes = new byte[len * 3]; // Avoid having to reallocate.
-        int outAt = 0;
+        for (int i = 0; i < asciiLength; i++) {
+            bytes[i] = (byte) string.charAt(i);
+        }
+        int outAt = asciiLength;
 
-        for (int i = 0; i < len; i++) {
+        for (int i = asciiLength; i < len; i++) {
             char c = string.charAt(i);
             if ((c != 0) && (c < 0x80)) {
                 bytes[outAt] = (byte) c;
@@ -75,6 +93,14 @@ public final class Utf8Utils {
                 }
             };
 
+    private static final ThreadLocal<byte[]> localByteBuffer =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[768];
+                }
+            };
+
     /**
      * Converts an array of UTF-8 bytes into a string.
      *
@@ -84,14 +110,20 @@ public final class Utf8Utils {
      * @return non-null; the converted string
      */
     public static String utf8BytesToString(byte[] bytes, int start, int length) {
+        int asciiLength = asciiPrefixLength(bytes, start, length);
+        if (asciiLength == length) {
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+
         char[] chars = localBuffer.get();
         if (chars == null || chars.length < length) {
             chars = new char[length];
             localBuffer.set(chars);
         }
-        int outAt = 0;
+        int outAt = copyAscii(bytes, start, asciiLength, chars);
+        length -= asciiLength;
 
-        for (int at = start; length > 0; /*at*/) {
+        for (int at = start + asciiLength; length > 0; /*at*/) {
             int v0 = bytes[at] & 0xFF;
             char out;
             switch (v0 >> 4) {
@@ -198,15 +230,26 @@ public final class Utf8Utils {
      */
     public static String utf8BytesWithUtf16LengthToString(@NonNull byte[] bytes, int start, int utf16Length,
                                                           @Nullable int[] readLength) {
+        // Most dex strings are descriptors and member names, which are plain ASCII. Every ASCII character is one
+        // byte, so such a string can be created directly from the bytes.
+        int asciiLength = asciiPrefixLength(bytes, start, utf16Length);
+        if (asciiLength == utf16Length) {
+            if (readLength != null && readLength.length > 0) {
+                readLength[0] = utf16Length;
+            }
+            return new String(bytes, start, utf16Length, StandardCharsets.ISO_8859_1);
+        }
+
         char[] chars = localBuffer.get();
         if (chars == null || chars.length < utf16Length) {
             chars = new char[utf16Length];
             localBuffer.set(chars);
         }
-        int outAt = 0;
+        int outAt = copyAscii(bytes, start, asciiLength, chars);
+        utf16Length -= asciiLength;
 
         int at = 0;
-        for (at = start; utf16Length > 0; utf16Length--) {
+        for (at = start + asciiLength; utf16Length > 0; utf16Length--) {
             int v0 = bytes[at] & 0xFF;
             char out;
             switch (v0 >> 4) {
@@ -280,11 +323,62 @@ public final class Utf8Utils {
 
         if (readLength != null && readLength.length > 0) {
             readLength[0] = at - start;
-            readLength[0] = at - start;
         }
         return new String(chars, 0, outAt);
     }
 
+    /**
+     * Converts UTF-8 bytes in a buffer into a string.
+     *
+     * @param bytes       non-null; the buffer containing the bytes to convert
+     * @param start       the absolute index in the buffer of the utf8 string to convert
+     * @param utf16Length the number of utf16 characters in the string to decode
+     * @param readLength  If non-null, the first element will contain the number of bytes read after the method exits
+     * @return non-null; the converted string
+     */
+    public static String utf8BytesWithUtf16LengthToString(@NonNull ByteBuffer bytes, int start, int utf16Length,
+                                                          @Nullable int[] readLength) {
+        if (bytes.hasArray()) {
+            int arrayOffset = bytes.arrayOffset();
+            return utf8BytesWithUtf16LengthToString(bytes.array(), arrayOffset + start, utf16Length, readLength);
+        }
+
+        // A buffer without an array, such as a mapped dex file, can't be handed to the String constructor or read
+        // as fast as an array. The bytes are copied out in bulk instead, at most three per character, and decoded
+        // from the copy.
+        int length = bytes.limit() - start;
+        if (utf16Length < length / 3) {
+            length = utf16Length * 3;
+        }
+        byte[] copy = localByteBuffer.get();
+        if (copy.length < length) {
+            copy = new byte[length];
+            localByteBuffer.set(copy);
+        }
+        ByteBuffer source = bytes.duplicate();
+        source.position(start);
+        source.get(copy, 0, length);
+        return utf8BytesWithUtf16LengthToString(copy, 0, utf16Length, readLength);
+    }
+
+    // Returns the number of bytes in 1..0x7f at the start of the range. A zero byte is not valid MUTF-8, and is left
+    // to the full decoder.
+    private static int asciiPrefixLength(@NonNull byte[] bytes, int start, int maxLength) {
+        int end = Math.min(start + maxLength, bytes.length);
+        int at = start;
+        while (at < end && bytes[at] > 0) {
+            at++;
+        }
+        return at - start;
+    }
+
+    private static int copyAscii(@NonNull byte[] bytes, int start, int length, @NonNull char[] chars) {
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) bytes[start + i];
+        }
+        return length;
+    }
+
     /**
      * Helper for {@link #utf8BytesToString}, which throws the right
      * exception for a bogus utf-8 byte.
@@ -205,5 +205,26 @@ public class TypedValue {
      */
     public static final int COMPLEX_MANTISSA_MASK = 0xffffff;
 
+    /**
+     * The type held by this value, as defined by the constants here.
+     * This tells you how to interpret the other fields in the object.
+     */
+    public int type;
+
+    /**
+     * If the value holds a string, this is it.
+     */
+    public CharSequence string;
+
+    /**
+     * Basic data in the value, interpreted according to {@link #type}
+     */
+    public int data;
+
+    /**
+     * If Value came from a resource, this holds the corresponding resource id.
+     */
+    public int resourceId;
+
 }
 
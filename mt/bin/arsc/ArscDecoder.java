@@ -0,0 +1,308 @@
+package bin.arsc;
+
+import android.util.SparseArray;
+import android.util.TypedValue;
+import bin.util.StringDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for resources.arsc that works directly on a (usually memory-mapped) buffer.
+ * <p/>
+ * Only the chunk headers of the table are read up front. Packages are indexed the
+ * first time one of their resources is requested, string pools are decoded lazily,
+ * and an entry is located in a type chunk by direct index or, for sparse chunks, by
+ * binary search.
+ */
+public class ArscDecoder {
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_TABLE_TYPE = 0x0002;
+    private static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    private static final int RES_TABLE_TYPE_TYPE = 0x0201;
+
+    private static final int TYPE_FLAG_SPARSE = 0x01;
+    private static final int TYPE_FLAG_OFFSET16 = 0x02;
+    private static final int ENTRY_FLAG_COMPLEX = 0x0001;
+    private static final int ENTRY_FLAG_COMPACT = 0x0008;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+
+    private static final int MAX_REFERENCE_DEPTH = 20;
+
+    private final ByteBuffer data;
+    private final StringDecoder mTableStrings;
+    private final SparseArray<Package> packages = new SparseArray<>();
+
+    private ArscDecoder(ByteBuffer buffer) throws IOException {
+        data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        checkChunk(0, RES_TABLE_TYPE);
+        int end = Math.min(data.getInt(4), data.limit());
+        int offset = data.getShort(2) & 0xFFFF;
+        StringDecoder strings = null;
+        while (offset + 8 <= end) {
+            int type = data.getShort(offset) & 0xFFFF;
+            int size = data.getInt(offset + 4);
+            if (size < 8)
+                throw new IOException("Invalid chunk size (" + size + ") at " + offset + ".");
+            if (type == RES_STRING_POOL_TYPE && strings == null) {
+                strings = StringDecoder.read(slice(offset, size));
+            } else if (type == RES_TABLE_PACKAGE_TYPE) {
+                Package pkg = new Package(offset);
+                packages.put(pkg.id, pkg);
+            }
+            offset += size;
+        }
+        if (strings == null)
+            throw new IOException("Global string pool not found.");
+        mTableStrings = strings;
+    }
+
+    public static ArscDecoder decode(ByteBuffer buffer) throws IOException {
+        return new ArscDecoder(buffer);
+    }
+
+    /**
+     * Maps the file into memory and decodes it. The file is never copied to the heap.
+     */
+    public static ArscDecoder decode(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            return new ArscDecoder(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public StringDecoder getStrings() {
+        return mTableStrings;
+    }
+
+    public String getPackageName(int id) {
+        Package pkg = packages.get(id >>> 24);
+        return pkg == null ? null : pkg.getName();
+    }
+
+    /**
+     * Returns the resource name in the form "package:type/entry", or null if the id
+     * does not exist.
+     */
+    public String getResourceName(int id) {
+        Package pkg = packages.get(id >>> 24);
+        if (pkg == null)
+            return null;
+        int entry = pkg.findEntry(id);
+        if (entry == -1)
+            return null;
+        int key = isCompact(entry) ? data.getShort(entry) & 0xFFFF : data.getInt(entry + 4);
+        return pkg.getName() + ":" + pkg.getTypeStrings().getString(((id >>> 16) & 0xFF) - 1 - pkg.typeIdOffset)
+                + "/" + pkg.getKeyStrings().getString(key);
+    }
+
+    public boolean getValue(int id, TypedValue outValue) {
+        return getValue(id, outValue, false);
+    }
+
+    /**
+     * Retrieves the value of a resource in the default configuration, or in the first
+     * configuration that defines it. Complex (bag) resources have no single value and
+     * are not returned.
+     *
+     * @param resolveRefs if true, references to other resources are followed
+     * @return true if the value was found
+     */
+    public boolean getValue(int id, TypedValue outValue, boolean resolveRefs) {
+        for (int depth = 0; depth < MAX_REFERENCE_DEPTH; depth++) {
+            Package pkg = packages.get(id >>> 24);
+            if (pkg == null)
+                return false;
+            int entry = pkg.findEntry(id);
+            if (entry == -1)
+                return false;
+            int flags = data.getShort(entry + 2) & 0xFFFF;
+            if (isCompact(entry)) {
+                outValue.type = flags >>> 8;
+                outValue.data = data.getInt(entry + 4);
+            } else {
+                if ((flags & ENTRY_FLAG_COMPLEX) != 0)
+                    return false;
+                int value = entry + (data.getShort(entry) & 0xFFFF);
+                outValue.type = data.get(value + 3) & 0xFF;
+                outValue.data = data.getInt(value + 4);
+            }
+            outValue.resourceId = id;
+            outValue.string = outValue.type == TypedValue.TYPE_STRING
+                    ? mTableStrings.getString(outValue.data) : null;
+            if (!resolveRefs || outValue.type != TypedValue.TYPE_REFERENCE || outValue.data == 0)
+                return true;
+            id = outValue.data;
+        }
+        return false;
+    }
+
+    ///////////////////////////////////
+
+    private boolean isCompact(int entry) {
+        return (data.getShort(entry + 2) & ENTRY_FLAG_COMPACT) != 0;
+    }
+
+    private ByteBuffer slice(int offset, int size) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.limit(offset + size).position(offset);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void checkChunk(int offset, int expectedType) throws IOException {
+        int type = offset + 8 <= data.limit() ? data.getShort(offset) & 0xFFFF : -1;
+        if (type != expectedType)
+            throw new IOException(String.format("Invalid chunk type: expected=0x%04x, got=0x%04x", expectedType, type));
+    }
+
+    private class Package {
+        final int offset;
+        final int id;
+        final int typeIdOffset;
+        private String name;
+        private StringDecoder typeStrings;
+        private StringDecoder keyStrings;
+        // type chunk offsets per type id, default configuration first
+        private SparseArray<int[]> types;
+
+        Package(int offset) {
+            this.offset = offset;
+            this.id = data.getInt(offset + 8);
+            int headerSize = data.getShort(offset + 2) & 0xFFFF;
+            this.typeIdOffset = headerSize >= 288 ? data.getInt(offset + 284) : 0;
+        }
+
+        String getName() {
+            if (name == null) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 128; i++) {
+                    char c = data.getChar(offset + 12 + i * 2);
+                    if (c == 0)
+                        break;
+                    sb.append(c);
+                }
+                name = sb.toString();
+            }
+            return name;
+        }
+
+        StringDecoder getTypeStrings() {
+            if (typeStrings == null)
+                typeStrings = readStrings(data.getInt(offset + 268));
+            return typeStrings;
+        }
+
+        StringDecoder getKeyStrings() {
+            if (keyStrings == null)
+                keyStrings = readStrings(data.getInt(offset + 276));
+            return keyStrings;
+        }
+
+        private StringDecoder readStrings(int poolOffset) {
+            int start = offset + poolOffset;
+            try {
+                return StringDecoder.read(slice(start, data.getInt(start + 4)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        int findEntry(int id) {
+            int[] chunks = getTypes().get((id >>> 16) & 0xFF);
+            if (chunks == null)
+                return -1;
+            int index = id & 0xFFFF;
+            for (int chunk : chunks) {
+                int entry = findEntry(chunk, index);
+                if (entry != -1)
+                    return entry;
+            }
+            return -1;
+        }
+
+        private int findEntry(int chunk, int index) {
+            int flags = data.get(chunk + 9) & 0xFF;
+            int entryCount = data.getInt(chunk + 12);
+            int entriesStart = data.getInt(chunk + 16);
+            int offsets = chunk + (data.getShort(chunk + 2) & 0xFFFF);
+            int offset;
+            if ((flags & TYPE_FLAG_SPARSE) != 0) {
+                int low = 0;
+                int high = entryCount - 1;
+                offset = NO_ENTRY;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    int midIndex = data.getShort(offsets + mid * 4) & 0xFFFF;
+                    if (midIndex < index) {
+                        low = mid + 1;
+                    } else if (midIndex > index) {
+                        high = mid - 1;
+                    } else {
+                        offset = (data.getShort(offsets + mid * 4 + 2) & 0xFFFF) * 4;
+                        break;
+                    }
+                }
+            } else if (index >= entryCount) {
+                return -1;
+            } else if ((flags & TYPE_FLAG_OFFSET16) != 0) {
+                offset = data.getShort(offsets + index * 2) & 0xFFFF;
+                offset = offset == 0xFFFF ? NO_ENTRY : offset * 4;
+            } else {
+                offset = data.getInt(offsets + index * 4);
+            }
+            return offset == NO_ENTRY ? -1 : chunk + entriesStart + offset;
+        }
+
+        private SparseArray<int[]> getTypes() {
+            if (types == null) {
+                SparseArray<List<Integer>> chunks = new SparseArray<>();
+                int end = offset + data.getInt(offset + 4);
+                int chunk = offset + (data.getShort(offset + 2) & 0xFFFF);
+                while (chunk + 8 <= end) {
+                    int size = data.getInt(chunk + 4);
+                    if (size < 8)
+                        break;
+                    if ((data.getShort(chunk) & 0xFFFF) == RES_TABLE_TYPE_TYPE) {
+                        int type = data.get(chunk + 8) & 0xFF;
+                        List<Integer> list = chunks.get(type);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            chunks.put(type, list);
+                        }
+                        if (isDefaultConfig(chunk))
+                            list.add(0, chunk);
+                        else
+                            list.add(chunk);
+                    }
+                    chunk += size;
+                }
+                SparseArray<int[]> types = new SparseArray<>(chunks.size());
+                for (int i = 0; i < chunks.size(); i++) {
+                    List<Integer> list = chunks.valueAt(i);
+                    int[] array = new int[list.size()];
+                    for (int j = 0; j < array.length; j++)
+                        array[j] = list.get(j);
+                    types.put(chunks.keyAt(i), array);
+                }
+                this.types = types;
+            }
+            return types;
+        }
+
+        private boolean isDefaultConfig(int chunk) {
+            int config = chunk + 20;
+            int size = data.getInt(config);
+            for (int i = 4; i < size; i++) {
+                if (data.get(config + i) != 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package bin.dex;
+
+import bin.zip.ZipOutputStream;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.ZipDexContainer;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.io.SegmentedDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Merges several dex files into fewer dex files that keep within the 64K method, field
+ * and type limits.
+ * <p/>
+ * The inputs are merged in the order they were added, so the classes of the first one
+ * start classes.dex. Each input is interned as a whole into the first output it fits in,
+ * on the executor if one is set. An input that fits in none of them fills up the existing
+ * outputs class by class, each class going into the first output with room for it. Only
+ * the classes left over go into new outputs. This first-fit packing is not guaranteed to
+ * find the smallest possible number of dex files, but it only opens a new one when a class
+ * fits in none of the others.
+ * <p/>
+ * A class defined more than once is a conflict. All of them are reported together by a
+ * {@link DuplicateClassException} before anything is written.
+ */
+public class DexMerger {
+    private final Opcodes opcodes;
+    private final List<String> names = new ArrayList<>();
+    private final List<DexFile> dexFiles = new ArrayList<>();
+
+    private Executor executor;
+
+    public DexMerger(Opcodes opcodes) {
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * Sets the executor to intern and write the classes on, or null to do it all on the
+     * calling thread.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a dex file, or every dex file in a zip.
+     */
+    public void addFile(File file) throws IOException {
+        ZipDexContainer container = new ZipDexContainer(file, opcodes);
+        if (!container.isZipFile()) {
+            addDexFile(file.getName(), DexBackedDexFile.fromFile(opcodes, file));
+            return;
+        }
+        for (String entryName : container.getDexEntryNames())
+            addDexFile(file.getName() + "!" + entryName, container.getEntry(entryName));
+    }
+
+    /**
+     * @param name the name to report conflicts with
+     */
+    public void addDexFile(String name, DexFile dexFile) {
+        names.add(name);
+        dexFiles.add(dexFile);
+    }
+
+    /**
+     * Writes the merged dex files to the zip, as classes.dex, classes2.dex and so on.
+     *
+     * @return the number of dex files that were written
+     * @throws DuplicateClassException if any class is defined more than once
+     */
+    public int writeTo(ZipOutputStream zos) throws IOException {
+        List<DexPool> dexPools = merge();
+        for (int i = 0; i < dexPools.size(); i++) {
+            DexPool dexPool = dexPools.get(i);
+            dexPool.setExecutor(executor);
+            SegmentedDataStore store = new SegmentedDataStore();
+            dexPool.writeTo(store);
+            zos.putNextEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+            store.writeTo(zos);
+            zos.closeEntry();
+            store.release();
+            dexPools.set(i, null);
+        }
+        return dexPools.size();
+    }
+
+    private List<DexPool> merge() throws IOException {
+        checkConflicts();
+
+        List<DexPool> dexPools = new ArrayList<>();
+        for (DexFile dexFile : dexFiles) {
+            if (internWhole(dexPools, dexFile.getClasses()))
+                continue;
+
+            // what does not fit in the existing outputs goes into new ones
+            List<ClassDef> rest = new ArrayList<>();
+            for (ClassDef classDef : dexFile.getClasses()) {
+                if (!internFirstFit(dexPools, classDef))
+                    rest.add(classDef);
+            }
+            if (rest.isEmpty())
+                continue;
+            DexPool newDex = new DexPool(opcodes);
+            if (internAll(newDex, rest)) {
+                dexPools.add(newDex);
+                continue;
+            }
+            int first = dexPools.size();
+            dexPools.add(newDex);
+            for (ClassDef classDef : rest) {
+                if (internFirstFit(dexPools.subList(first, dexPools.size()), classDef))
+                    continue;
+                newDex = new DexPool(opcodes);
+                if (!MultiDexWriter.intern(newDex, classDef))
+                    throw new IOException("Class " + classDef.getType() + " does not fit in a dex file");
+                dexPools.add(newDex);
+            }
+        }
+        return dexPools;
+    }
+
+    private void checkConflicts() throws DuplicateClassException {
+        Map<String, List<String>> definitions = new LinkedHashMap<>();
+        boolean duplicated = false;
+        for (int i = 0; i < dexFiles.size(); i++) {
+            for (ClassDef classDef : dexFiles.get(i).getClasses()) {
+                List<String> sources = definitions.get(classDef.getType());
+                if (sources == null) {
+                    sources = new ArrayList<>(1);
+                    definitions.put(classDef.getType(), sources);
+                } else {
+                    duplicated = true;
+                }
+                sources.add(names.get(i));
+            }
+        }
+        if (!duplicated)
+            return;
+
+        Map<String, List<String>> conflicts = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : definitions.entrySet()) {
+            if (entry.getValue().size() > 1)
+                conflicts.put(entry.getKey(), entry.getValue());
+        }
+        throw new DuplicateClassException(conflicts);
+    }
+
+    // interns all of the classes into the first existing dex they fit in
+    private boolean internWhole(List<DexPool> dexPools, Iterable<? extends ClassDef> classDefs) {
+        for (DexPool dexPool : dexPools) {
+            if (internAll(dexPool, classDefs))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean internAll(DexPool dexPool, Iterable<? extends ClassDef> classDefs) {
+        dexPool.mark();
+        try {
+            if (executor != null) {
+                dexPool.internClasses(classDefs, executor);
+            } else {
+                for (ClassDef classDef : classDefs)
+                    dexPool.internClass(classDef);
+            }
+        } catch (RuntimeException e) {
+            dexPool.reset();
+            throw e;
+        }
+        if (!dexPool.hasOverflowed())
+            return true;
+        dexPool.reset();
+        return false;
+    }
+
+    private static boolean internFirstFit(List<DexPool> dexPools, ClassDef classDef) {
+        for (DexPool dexPool : dexPools) {
+            if (MultiDexWriter.intern(dexPool, classDef))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Thrown when classes are defined by more than one of the dex files being merged.
+     */
+    public static class DuplicateClassException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private static final int MAX_REPORTED = 20;
+
+        private final Map<String, List<String>> conflicts;
+
+        DuplicateClassException(Map<String, List<String>> conflicts) {
+            super(describe(conflicts));
+            this.conflicts = conflicts;
+        }
+
+        /**
+         * @return the duplicated classes, as type descriptors, mapped to the names of the
+         * dex files that define them
+         */
+        public Map<String, List<String>> getConflicts() {
+            return conflicts;
+        }
+
+        private static String describe(Map<String, List<String>> conflicts) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(conflicts.size()).append(" classes are defined more than once:");
+            int count = 0;
+            for (Map.Entry<String, List<String>> entry : conflicts.entrySet()) {
+                if (count++ == MAX_REPORTED) {
+                    sb.append("\n  ...");
+                    break;
+                }
+                sb.append("\n  ").append(entry.getKey()).append(" in ").append(String.join(", ", entry.getValue()));
+            }
+            return sb.toString();
+        }
+    }
+}
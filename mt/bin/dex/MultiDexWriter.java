@@ -0,0 +1,148 @@
+package bin.dex;
+
+import bin.zip.ZipOutputStream;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.SegmentedDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes classes into as many dex files as needed to keep each one under the 64K
+ * method, field and type limits.
+ * <p/>
+ * Classes are interned into a {@link DexPool} until one would overflow it. That class is
+ * rolled back with {@link DexPool#reset()}, the full pool is written to the zip as the
+ * next classesN.dex, and a new pool is started with the class.
+ * <p/>
+ * If a main dex list is set, classes.dex holds the listed classes and nothing else, and
+ * is written by {@link #finish()}, since the listed classes can come in any order. If
+ * none of them were added, the last dex becomes classes.dex instead. Otherwise
+ * classes.dex is filled like the others.
+ */
+public class MultiDexWriter {
+    private final ZipOutputStream zos;
+    private final Opcodes opcodes;
+    private final Set<String> types = new HashSet<>();
+
+    private Set<String> mainDexClasses;
+    private int nextDexNumber = 2;
+    private int dexCount;
+    private boolean primaryWritten;
+
+    private DexPool mainDex;
+    private DexPool currentDex;
+
+    public MultiDexWriter(ZipOutputStream zos, Opcodes opcodes) {
+        this.zos = zos;
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * Sets the classes, as type descriptors, that have to be in classes.dex. Must be
+     * called before any class is added.
+     */
+    public void setMainDexClasses(Collection<String> mainDexClasses) {
+        checkNotStarted();
+        this.mainDexClasses = mainDexClasses == null ? null : new HashSet<>(mainDexClasses);
+    }
+
+    /**
+     * Sets the number of the first secondary dex file, for a zip that already has
+     * classes2.dex to classes(N-1).dex from elsewhere. Must be called before any class is
+     * added.
+     */
+    public void setSecondaryDexNumber(int number) {
+        checkNotStarted();
+        if (number < 2)
+            throw new IllegalArgumentException("Invalid dex number: " + number);
+        nextDexNumber = number;
+    }
+
+    public void addClasses(Iterable<? extends ClassDef> classDefs) throws IOException {
+        for (ClassDef classDef : classDefs)
+            addClass(classDef);
+    }
+
+    public void addClass(ClassDef classDef) throws IOException {
+        String type = classDef.getType();
+        if (!types.add(type))
+            throw new IllegalArgumentException("Class " + type + " has already been added");
+
+        if (mainDexClasses != null && mainDexClasses.contains(type)) {
+            if (mainDex == null)
+                mainDex = new DexPool(opcodes);
+            if (!intern(mainDex, classDef))
+                throw new IOException("The main dex classes do not fit in classes.dex");
+            return;
+        }
+
+        if (currentDex == null)
+            currentDex = new DexPool(opcodes);
+        if (!intern(currentDex, classDef)) {
+            write(currentDex, nextDexName());
+            currentDex = new DexPool(opcodes);
+            if (!intern(currentDex, classDef))
+                throw new IOException("Class " + type + " does not fit in a dex file");
+        }
+    }
+
+    /**
+     * Writes the dex files that are not written yet.
+     *
+     * @return the number of dex files that were written
+     */
+    public int finish() throws IOException {
+        if (mainDex != null) {
+            write(mainDex, "classes.dex");
+            mainDex = null;
+        }
+        if (currentDex != null) {
+            write(currentDex, primaryWritten ? nextDexName() : "classes.dex");
+            currentDex = null;
+        }
+        return dexCount;
+    }
+
+    // interns the class, or leaves the pool as it was if the class makes it overflow
+    static boolean intern(DexPool dexPool, ClassDef classDef) {
+        dexPool.mark();
+        try {
+            dexPool.internClass(classDef);
+        } catch (RuntimeException e) {
+            dexPool.reset();
+            throw e;
+        }
+        if (!dexPool.hasOverflowed())
+            return true;
+        dexPool.reset();
+        return false;
+    }
+
+    private String nextDexName() {
+        if (mainDexClasses == null && !primaryWritten)
+            return "classes.dex";
+        return "classes" + nextDexNumber++ + ".dex";
+    }
+
+    private void write(DexPool dexPool, String name) throws IOException {
+        if (name.equals("classes.dex"))
+            primaryWritten = true;
+        SegmentedDataStore store = new SegmentedDataStore();
+        dexPool.writeTo(store);
+        zos.putNextEntry(name);
+        store.writeTo(zos);
+        zos.closeEntry();
+        store.release();
+        dexCount++;
+    }
+
+    private void checkNotStarted() {
+        if (!types.isEmpty())
+            throw new IllegalStateException("Classes have already been added");
+    }
+}
@@ -0,0 +1,124 @@
+package bin.dex;
+
+import bin.zip.ZipEntry;
+import bin.zip.ZipOutputStream;
+import org.jf.dexlib2.writer.io.DexDataStore;
+import org.jf.util.RandomAccessFileInputStream;
+import org.jf.util.RandomAccessFileOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A DexDataStore that puts the dex file into a zip entry.
+ * <p/>
+ * The dex writer goes back to patch the header once everything else is written, so
+ * nothing can go into the entry until the dex file is complete. Until then it is kept in
+ * a temporary file. {@link #writeEntry()} then streams it into the entry through a small
+ * buffer, and the zip computes the CRC as it goes. Only a STORED entry in a zip that is
+ * not seekable needs the CRC up front, which takes one more read of the file.
+ * <p/>
+ * <pre>
+ * ZipEntryDataStore store = new ZipEntryDataStore(zos, "classes.dex");
+ * dexBuilder.writeTo(store);
+ * store.writeEntry();
+ * </pre>
+ */
+public class ZipEntryDataStore implements DexDataStore {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ZipOutputStream zos;
+    private final String entryName;
+    private final File file;
+    private final RandomAccessFile raf;
+    private int method = -1;
+
+    public ZipEntryDataStore(ZipOutputStream zos, String entryName) throws IOException {
+        this.zos = zos;
+        this.entryName = entryName;
+        file = File.createTempFile("dex", null);
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Sets the method of the entry, {@link ZipOutputStream#STORED} or
+     * {@link ZipOutputStream#DEFLATED}. If it is not set, the zip's method is used.
+     */
+    public void setMethod(int method) {
+        this.method = method;
+    }
+
+    @Override
+    public OutputStream outputAt(int offset) {
+        return new RandomAccessFileOutputStream(raf, offset);
+    }
+
+    @Override
+    public InputStream readAt(int offset) {
+        return new RandomAccessFileInputStream(raf, offset);
+    }
+
+    /**
+     * Maps the written dex file, to check it before it goes into the zip.
+     * <p/>
+     * On Windows a mapped file cannot be deleted, so the temporary file is left until
+     * the JVM exits.
+     */
+    public ByteBuffer map() throws IOException {
+        return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+
+    /**
+     * Writes the dex file into its entry, and deletes the temporary file.
+     */
+    public void writeEntry() throws IOException {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ZipEntry ze = new ZipEntry(entryName);
+            int method = this.method != -1 ? this.method : zos.getMethod();
+            ze.setMethod(method);
+            if (method == ZipOutputStream.STORED && !zos.isSeekable()) {
+                CRC32 crc = new CRC32();
+                raf.seek(0);
+                int len;
+                while ((len = raf.read(buffer)) > 0)
+                    crc.update(buffer, 0, len);
+                ze.setSize(raf.length());
+                ze.setCrc(crc.getValue());
+            }
+
+            zos.putNextEntry(ze);
+            raf.seek(0);
+            int len;
+            while ((len = raf.read(buffer)) > 0)
+                zos.write(buffer, 0, len);
+            zos.closeEntry();
+        } finally {
+            delete();
+        }
+    }
+
+    /**
+     * Deletes the temporary file without writing the entry.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void delete() throws IOException {
+        raf.close();
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    /**
+     * Does nothing. The dex writer closes the store as soon as the dex file is written,
+     * which is before it can go into the entry.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -1,53 +1,76 @@
 package bin.io;
 
-import java.io.DataInputStream;
+import bin.util.StreamUtil;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+/**
+ * Little-endian reader backed by a {@link ByteBuffer}. Streams are read into a heap
+ * buffer up front; files may be passed in as a mapped buffer instead.
+ */
 public final class ZInput {
-    protected final DataInputStream dis;
-    protected final byte[] work;
-    private int size;
+    private final ByteBuffer buf;
+    private final InputStream in;
 
     public ZInput(InputStream in) throws IOException {
-        dis = new DataInputStream(in);
-        work = new byte[8];
-        size = 0;
+        this.in = in;
+        buf = ByteBuffer.wrap(StreamUtil.readBytes(in)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public ZInput(ByteBuffer buffer) {
+        in = null;
+        buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public int getOffset() throws IOException {
-        return size;
+        return buf.position();
     }
 
     public void skipByOffset(int offset) throws IOException {
-        offset -= getOffset();
-        if (offset > 0) {
-            skipBytes(offset);
+        if (offset > buf.position()) {
+            if (offset > buf.limit())
+                throw new EOFException();
+            buf.position(offset);
         }
     }
 
+    /**
+     * Returns a little-endian view of {@code length} bytes at the given offset,
+     * without copying and without moving the read position.
+     */
+    public ByteBuffer getBuffer(int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buf.limit())
+            throw new EOFException();
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     public void close() throws IOException {
-        dis.close();
+        if (in != null)
+            in.close();
     }
 
     public int available() throws IOException {
-        return dis.available();
+        return buf.remaining();
     }
 
     public final boolean readBoolean() throws IOException {
-        size++;
-        return dis.readBoolean();
+        return readByte() != 0;
     }
 
     public final byte readByte() throws IOException {
-        size++;
-        return dis.readByte();
+        require(1);
+        return buf.get();
     }
 
     public final char readChar() throws IOException {
-        dis.readFully(work, 0, 2);
-        size += 2;
-        return (char) ((work[1] & 0xFF) << 8 | work[0] & 0xFF);
+        require(2);
+        return buf.getChar();
     }
 
     public final double readDouble() throws IOException {
@@ -55,9 +78,10 @@ public final class ZInput {
     }
 
     public int[] readIntArray(int length) throws IOException {
+        require(length * 4);
         int[] array = new int[length];
-        for (int i = 0; i < length; i++)
-            array[i] = readInt();
+        buf.asIntBuffer().get(array);
+        buf.position(buf.position() + length * 4);
         return array;
     }
 
@@ -99,9 +123,11 @@ public final class ZInput {
 
 
     public int read(byte[] b, int a, int len) throws IOException {
-        int r = dis.read(b, a, len);
-        size += r;
-        return r;
+        if (!buf.hasRemaining())
+            return -1;
+        len = Math.min(len, buf.remaining());
+        buf.get(b, a, len);
+        return len;
     }
 
     public final float readFloat() throws IOException {
@@ -109,35 +135,27 @@ public final class ZInput {
     }
 
     public final void readFully(byte[] ba) throws IOException {
-        dis.readFully(ba, 0, ba.length);
-        size += ba.length;
+        readFully(ba, 0, ba.length);
     }
 
     public final void readFully(byte[] ba, int off, int len) throws IOException {
-        dis.readFully(ba, off, len);
-        size += len;
+        require(len);
+        buf.get(ba, off, len);
     }
 
     public final int readInt() throws IOException {
-        dis.readFully(work, 0, 4);
-        size += 4;
-        return work[3] << 24 | (work[2] & 0xFF) << 16 | (work[1] & 0xFF) << 8
-                | work[0] & 0xFF;
+        require(4);
+        return buf.getInt();
     }
 
     public final long readLong() throws IOException {
-        dis.readFully(work, 0, 8);
-        size += 8;
-        return (long) work[7] << 56 | ((long) work[6] & 0xFF) << 48 | ((long) work[5] & 0xFF) << 40
-                | ((long) work[4] & 0xFF) << 32 | ((long) work[3] & 0xFF) << 24
-                | ((long) work[2] & 0xFF) << 16 | ((long) work[1] & 0xFF) << 8 | (long) work[0]
-                & 0xFF;
+        require(8);
+        return buf.getLong();
     }
 
     public final short readShort() throws IOException {
-        dis.readFully(work, 0, 2);
-        size += 2;
-        return (short) ((work[1] & 0xFF) << 8 | work[0] & 0xFF);
+        require(2);
+        return buf.getShort();
     }
 
 //    public final String readUTF() throws IOException {
@@ -149,14 +167,13 @@ public final class ZInput {
 //    }
 
     public final int readUnsignedShort() throws IOException {
-        dis.readFully(work, 0, 2);
-        size += 2;
-        return (work[1] & 0xFF) << 8 | work[0] & 0xFF;
+        return readShort() & 0xFFFF;
     }
 
     public final int skipBytes(int n) throws IOException {
-        size += n;
-        return dis.skipBytes(n);
+        n = Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + n);
+        return n;
     }
 
     public String readNullEndedString(int length, boolean fixed)
@@ -175,4 +192,9 @@ public final class ZInput {
 
         return string.toString();
     }
+
+    private void require(int n) throws EOFException {
+        if (buf.remaining() < n)
+            throw new EOFException();
+    }
 }
@@ -2,79 +2,145 @@ package bin.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Little-endian writer backed by a {@link ByteBuffer}. When created over an
+ * {@link OutputStream} the buffer is flushed to the stream as it fills up and by
+ * {@link #flush()}/{@link #close()}; otherwise it grows and keeps everything in memory.
+ */
 public final class ZOutput {
+    private static final int BUFFER_SIZE = 8192;
 
     private int written;
-    private OutputStream dos;
+    private final OutputStream dos;
+    private ByteBuffer buf;
 
     public ZOutput(OutputStream out) {
         written = 0;
         dos = out;
+        buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Creates an in-memory output with the given initial capacity.
+     */
+    public ZOutput(int initialCapacity) {
+        written = 0;
+        dos = null;
+        buf = ByteBuffer.allocate(Math.max(16, initialCapacity)).order(ByteOrder.LITTLE_ENDIAN);
     }
 
     public final void writeShort(short s) throws IOException {
-        dos.write(s & 0xFF);
-        written++;
-        dos.write(s >>> 8 & 0xFF);
-        written++;
+        ensure(2);
+        buf.putShort(s);
+    }
+
+    public void flush() throws IOException {
+        if (dos != null) {
+            flushBuffer();
+            dos.flush();
+        }
     }
 
     public void close() throws IOException {
-        dos.close();
+        if (dos != null) {
+            flushBuffer();
+            dos.close();
+        }
     }
 
     public int size() {
-        return written;
+        return written + buf.position();
+    }
+
+    /**
+     * Returns a copy of everything written to an in-memory output.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Writes everything written to this in-memory output to another output.
+     */
+    public void writeTo(ZOutput out) throws IOException {
+        out.writeFully(buf.array(), 0, buf.position());
     }
 
     public final void writeChar(char c) throws IOException {
-        dos.write(c & 0xFF);
-        written++;
-        dos.write(c >>> 8 & 0xFF);
-        written++;
+        ensure(2);
+        buf.putChar(c);
     }
 
     public final void writeCharArray(char[] c) throws IOException {
-        for (char element : c)
-            writeChar(element);
+        int s = 0;
+        while (s < c.length) {
+            int n = Math.min(c.length - s, ensureSome(2, c.length - s));
+            buf.asCharBuffer().put(c, s, n);
+            buf.position(buf.position() + n * 2);
+            s += n;
+        }
     }
 
     public final void write(int i) throws IOException {
-        dos.write(i);
-        written++;
+        ensure(1);
+        buf.put((byte) i);
     }
 
     public final void writeByte(int b) throws IOException {
-        dos.write(b);
-        written++;
+        ensure(1);
+        buf.put((byte) b);
     }
 
     public final void writeFully(byte[] b) throws IOException {
-        dos.write(b, 0, b.length);
-        written += b.length;
+        writeFully(b, 0, b.length);
     }
 
     public final void writeFully(byte[] b, int a, int len) throws IOException {
-        dos.write(b, a, len);
-        written += len;
+        if (dos != null && len > buf.capacity()) {
+            flushBuffer();
+            dos.write(b, a, len);
+            written += len;
+            return;
+        }
+        ensure(len);
+        buf.put(b, a, len);
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer without moving its position.
+     */
+    public final void writeFully(ByteBuffer b) throws IOException {
+        if (b.hasArray()) {
+            writeFully(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            return;
+        }
+        ByteBuffer src = b.duplicate();
+        int end = src.limit();
+        while (src.position() < end) {
+            int n = Math.min(end - src.position(), ensureSome(1, end - src.position()));
+            src.limit(src.position() + n);
+            buf.put(src);
+            src.limit(end);
+        }
     }
 
     public final void writeInt(int i) throws IOException {
-        dos.write(i & 0xFF);
-        written++;
-        dos.write(i >>> 8 & 0xFF);
-        written++;
-        dos.write(i >>> 16 & 0xFF);
-        written++;
-        dos.write(i >>> 24 & 0xFF);
-        written++;
+        ensure(4);
+        buf.putInt(i);
     }
 
     public final void writeIntArray(int[] buf, int s, int end)
             throws IOException {
-        for (; s < end; s++)
-            writeInt(buf[s]);
+        while (s < end) {
+            int n = Math.min(end - s, ensureSome(4, end - s));
+            this.buf.asIntBuffer().put(buf, s, n);
+            this.buf.position(this.buf.position() + n * 4);
+            s += n;
+        }
     }
 
     public final void writeIntArray(int[] buf) throws IOException {
@@ -90,10 +156,48 @@ public final class ZOutput {
             length--;
         }
         if (fixed)
-            for (int i = 0; i < length * 2; i++) {
-                dos.write(0);
-                written++;
-            }
+            for (int i = 0; i < length * 2; i++)
+                writeByte(0);
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() >= n)
+            return;
+        if (dos != null) {
+            flushBuffer();
+            if (buf.remaining() >= n)
+                return;
+        }
+        grow(n);
+    }
+
+    // Makes room for at least one element, and for up to count elements if the
+    // buffer can take them. Returns the number of elements that fit.
+    private int ensureSome(int elementSize, int count) throws IOException {
+        if (dos != null) {
+            if (buf.remaining() < elementSize)
+                flushBuffer();
+        } else if (buf.remaining() < elementSize * count) {
+            grow(elementSize * count);
+        }
+        return buf.remaining() / elementSize;
+    }
+
+    private void grow(int n) {
+        int capacity = Math.max(buf.capacity() * 2, buf.position() + n);
+        ByteBuffer newBuf = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        buf.flip();
+        newBuf.put(buf);
+        buf = newBuf;
+    }
+
+    private void flushBuffer() throws IOException {
+        int length = buf.position();
+        if (length > 0) {
+            dos.write(buf.array(), 0, length);
+            written += length;
+            buf.clear();
+        }
     }
 
 }
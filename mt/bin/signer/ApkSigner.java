@@ -206,6 +206,15 @@ public class ApkSigner {
     };
 
     public static void signApk(File input, File output, BaseSignatureKey key, ApkSignCallback callback) throws Exception {
+        signApk(input, output, key, -1, callback);
+    }
+
+    /**
+     * @param time the time to stamp every entry with, or -1 to use an hour after the
+     *             certificate's notBefore. A fixed time makes the output the same in every
+     *             time zone, as zip entries store local times.
+     */
+    public static void signApk(File input, File output, BaseSignatureKey key, long time, ApkSignCallback callback) throws Exception {
         ZipFile inputJar = null;
         ZipOutputStream outputJar;
         FileOutputStream outputFile = null;
@@ -222,7 +231,7 @@ public class ApkSigner {
             callback.onStep(Step.SIGN_FILE);
             Manifest manifest = ApkSigner.addDigestsToManifest(inputJar, callback);
             //Write out signature files
-            long timestamp = publicKey.getNotBefore().getTime() + 3600L * 1000;
+            long timestamp = time != -1 ? time : publicKey.getNotBefore().getTime() + 3600L * 1000;
             outputFile = new FileOutputStream(output);
             outputJar = new ZipOutputStream(outputFile);
             outputJar.setZipEncoding(inputJar.getZipEncoding());
@@ -3,16 +3,25 @@ package bin.util;
 import bin.io.ZInput;
 import bin.io.ZOutput;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 
 public class StringDecoder {
     private String[] m_strings;
+    private int m_stringCount;
+    private HashMap<String, Integer> m_stringIndex;
+    private boolean m_hasDuplicates;
+    private boolean m_modified;
+    private ByteBuffer m_data;
+    private int[] m_stringOffsets;
     private int[] m_styleOffsets;
     private int[] m_styles;
     private boolean m_isUTF8;
@@ -36,61 +45,61 @@ public class StringDecoder {
     private static final int CHUNK_STRINGPOOL_TYPE = 0x001C0001;
     private static final int CHUNK_NULL_TYPE = 0x00000000;
     public static final int IS_UTF8 = 0x100;
+    public static final int SORTED = 0x1;
 
+    /**
+     * Reads a string pool chunk from the input. The chunk is kept in the input's
+     * buffer and strings are decoded on first access, see {@link #read(ByteBuffer)}.
+     */
     public static StringDecoder read(ZInput mIn) throws IOException {
         mIn.skipCheckChunkTypeInt(CHUNK_STRINGPOOL_TYPE, CHUNK_NULL_TYPE);
-        StringDecoder block = new StringDecoder();
-        int chunkSize = block.chunkSize = mIn.readInt();
-
-        // ResStringPool_header
-        int stringCount = mIn.readInt();
-        int styleCount = block.styleOffsetCount = mIn.readInt();
-        int flags = block.flags = mIn.readInt();
-        int stringsOffset = mIn.readInt();
-        int stylesOffset = block.stylesOffset = mIn.readInt();
+        int chunkStart = mIn.getOffset() - 4;
+        int chunkSize = mIn.readInt();
+        StringDecoder block = read(mIn.getBuffer(chunkStart, chunkSize));
+        mIn.skipByOffset(chunkStart + chunkSize);
+        return block;
+    }
 
+    /**
+     * Reads a string pool chunk without decoding it. Strings are decoded from the
+     * buffer the first time they are requested, so the buffer must stay valid for
+     * the lifetime of the returned decoder.
+     */
+    public static StringDecoder read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int type = in.getInt(0);
+        if (type != CHUNK_STRINGPOOL_TYPE)
+            throw new IOException(String.format("Expected: 0x%08x, got: 0x%08x", CHUNK_STRINGPOOL_TYPE, type));
+        StringDecoder block = new StringDecoder();
+        int headerSize = in.getShort(2) & 0xFFFF;
+        int chunkSize = block.chunkSize = in.getInt(4);
+        int stringCount = in.getInt(8);
+        int styleCount = block.styleOffsetCount = in.getInt(12);
+        int flags = block.flags = in.getInt(16);
+        int stringsOffset = in.getInt(20);
+        int stylesOffset = block.stylesOffset = in.getInt(24);
         block.m_isUTF8 = (flags & IS_UTF8) != 0;
-        int[] m_stringOffsets = mIn.readIntArray(stringCount);
 
+        in.position(headerSize);
+        block.m_stringOffsets = new int[stringCount];
+        in.asIntBuffer().get(block.m_stringOffsets);
         if (styleCount != 0) {
-            block.m_styleOffsets = mIn.readIntArray(styleCount);
+            block.m_styleOffsets = new int[styleCount];
+            in.position(headerSize + stringCount * 4);
+            in.asIntBuffer().get(block.m_styleOffsets);
         }
         int size = ((stylesOffset == 0) ? chunkSize : stylesOffset) - stringsOffset;
-        byte[] data = new byte[size];
-        mIn.readFully(data);
+        in.limit(stringsOffset + size).position(stringsOffset);
+        block.m_data = in.slice().order(ByteOrder.LITTLE_ENDIAN);
         block.m_strings_size = size;
 
         if (stylesOffset != 0) {
-            size = (chunkSize - stylesOffset);
-            block.m_styles = mIn.readIntArray(size / 4);
-
-            // read remaining bytes
-            int remaining = size % 4;
-            if (remaining >= 1) {
-                while (remaining-- > 0) {
-                    mIn.readByte();
-                }
-            }
+            in.limit(chunkSize).position(stylesOffset);
+            block.m_styles = new int[(chunkSize - stylesOffset) / 4];
+            in.asIntBuffer().get(block.m_styles);
         }
-        // System.out.println();
-
-        int i = 0;
-        block.m_strings = new String[m_stringOffsets.length];
-        for (int offset : m_stringOffsets) {
-            int length;
-            if (!block.m_isUTF8) {
-                length = getShort(data, offset) * 2;
-                offset += 2;
-            } else {
-                offset += getVarint(data, offset)[1];
-                int[] varint = getVarint(data, offset);
-                offset += varint[1];
-                length = varint[0];
-            }
-            block.m_strings[i++] = decodeString(offset, length, block.m_isUTF8,
-                    data);
-        }
-        data = null;
+        block.m_strings = new String[stringCount];
+        block.m_stringCount = stringCount;
         return block;
     }
 
@@ -101,11 +110,37 @@ public class StringDecoder {
         if (string == null) {
             return -1;
         }
-        for (int i = 0; i < m_strings.length; i++) {
-            if (getString(i).equals(string))
-                return i;
+        Integer index = getStringIndex().get(string);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Appends a string to the end of the pool and returns its index.
+     */
+    public int addString(String string) {
+        if (string == null)
+            throw new NullPointerException("string");
+        if (m_stringCount == m_strings.length)
+            m_strings = Arrays.copyOf(m_strings, Math.max(16, m_stringCount + (m_stringCount >> 1)));
+        int index = m_stringCount++;
+        m_strings[index] = string;
+        m_modified = true;
+        if (m_stringIndex != null && m_stringIndex.putIfAbsent(string, index) != null)
+            m_hasDuplicates = true;
+        return index;
+    }
+
+    private HashMap<String, Integer> getStringIndex() {
+        if (m_stringIndex == null) {
+            HashMap<String, Integer> map = new HashMap<>(m_stringCount * 4 / 3 + 1);
+            for (int i = 0; i < m_stringCount; i++) {
+                String s = getString(i);
+                if (s != null && map.putIfAbsent(s, i) != null)
+                    m_hasDuplicates = true;
+            }
+            m_stringIndex = map;
         }
-        return -1;
+        return m_stringIndex;
     }
 
     public void getStrings(List<String> list) {
@@ -117,123 +152,243 @@ public class StringDecoder {
     public void write(ZOutput out) throws IOException {
         // List<String> list = new ArrayList<String>(getSize());
         // getStrings(list);
-        write(m_strings, out);
+        for (int i = 0; i < m_stringCount; i++)
+            getString(i);
+        write(m_strings, m_stringCount, m_modified, m_styles, out);
     }
 
     public void write(String[] s, ZOutput out) throws IOException {
-        ByteArrayOutputStream outBuf = new ByteArrayOutputStream();
-        ZOutput led = new ZOutput(outBuf);
-        // stringCount
-        int size = s.length;
+        write(s, s.length, m_modified || !isSame(s), m_styles, out);
+    }
+
+    private boolean isSame(String[] s) {
+        if (s.length != m_stringCount)
+            return false;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] == null ? getString(i) != null : !s[i].equals(getString(i)))
+                return false;
+        }
+        return true;
+    }
 
+    // a modified pool may no longer be in order, so it loses the SORTED flag
+    private void write(String[] s, int size, boolean modified, int[] styles, ZOutput out) throws IOException {
         // m_stringOffsets
         int[] offset = new int[size];
-        int len = 0;
 
         // m_strings
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        ZOutput mStrings = new ZOutput(bOut);
-
-        if (this.m_isUTF8) {
-            for (int i = 0; i < size; i++) {
-                offset[i] = len;
-                String var = s[i];
-                char[] charBuf = var.toCharArray();
-                byte[] b = getVarBytes(charBuf.length);
-                mStrings.writeFully(b);
-                len += b.length;
-                byte[] buf = var.getBytes("UTF-8");
-                b = getVarBytes(buf.length);
-                mStrings.writeFully(b);
-                len += b.length;
-                mStrings.writeFully(buf);
-                len += buf.length;
-                mStrings.writeByte(0);
-                len += 1;
-            }
-        } else {
-            for (int i = 0; i < size; i++) {
-                offset[i] = len;
-                String var = s[i];
-                char[] charBuf = var.toCharArray();
-                mStrings.writeShort((short) charBuf.length);
-                for (char c : charBuf)
-                    mStrings.writeChar(c);
-                mStrings.writeShort((short) 0);
-                len += charBuf.length * 2 + 4;
-            }
-        }
+        ZOutput mStrings = new ZOutput(m_strings_size + 64);
 
-        int m_strings_size = bOut.size();
-        int size_mod = m_strings_size % 4;// m_strings_size%4
-        // padding 0
-        if (size_mod != 0) {
-            for (int i = 0; i < 4 - size_mod; i++)
-                bOut.write(0);
-            m_strings_size += 4 - size_mod;
+        for (int i = 0; i < size; i++) {
+            offset[i] = mStrings.size();
+            writeString(s[i], mStrings);
         }
-        byte[] m_strings = bOut.toByteArray();
-
-        // System.out.println("string chunk size: " + chunkSize);
 
-        led.writeInt(size);
-        led.writeInt(styleOffsetCount);
-        led.writeInt(flags);
-        // led.writeInt(0x010);
+        // padding 0
+        while (mStrings.size() % 4 != 0)
+            mStrings.writeByte(0);
+        int m_strings_size = mStrings.size();
 
         int stringsOffset = 28 + (size + styleOffsetCount) * 4;
-        led.writeInt(stringsOffset);
-        int i = m_strings_size - this.m_strings_size;
-        led.writeInt(stylesOffset == 0 ? 0 : stylesOffset + i * 4);
+        int stylesSize = styles == null ? 0 : styles.length * 4;
 
-        led.writeIntArray(offset);
+        out.writeInt(CHUNK_STRINGPOOL_TYPE);
+        out.writeInt(stringsOffset + m_strings_size + stylesSize);
+        out.writeInt(size);
+        out.writeInt(styleOffsetCount);
+        out.writeInt(modified ? flags & ~SORTED : flags);
+        out.writeInt(stringsOffset);
+        out.writeInt(stylesOffset == 0 ? 0 : stringsOffset + m_strings_size);
+
+        out.writeIntArray(offset);
         if (styleOffsetCount != 0)
-            for (int j : m_styleOffsets)
-                led.writeInt(j);
+            out.writeIntArray(m_styleOffsets);
 
-        led.writeFully(m_strings);
+        mStrings.writeTo(out);
+
+        if (styles != null)
+            out.writeIntArray(styles);
+    }
+
+    private void writeString(String s, ZOutput out) throws IOException {
+        if (m_isUTF8) {
+            out.writeFully(getVarBytes(s.length()));
+            byte[] buf = s.getBytes("UTF-8");
+            out.writeFully(getVarBytes(buf.length));
+            out.writeFully(buf);
+            out.writeByte(0);
+        } else {
+            char[] charBuf = s.toCharArray();
+            out.writeShort((short) charBuf.length);
+            out.writeCharArray(charBuf);
+            out.writeShort((short) 0);
+        }
+    }
+
+    private int getEncodedSize(String s) throws IOException {
+        if (m_isUTF8) {
+            int length = s.getBytes("UTF-8").length;
+            return getVarBytes(s.length()).length + getVarBytes(length).length + length + 1;
+        }
+        return 2 + s.length() * 2 + 2;
+    }
+
+    /**
+     * Returns the size of the chunk that {@link #write(int, Collection, Collection, ZOutput)}
+     * writes.
+     */
+    public int getChunkSize(int insertAt, Collection<String> inserted, Collection<String> appended) throws IOException {
+        getStyles(insertAt, inserted.size());
+        if (m_modified) {
+            ZOutput out = new ZOutput(chunkSize + 1024);
+            write(insertAt, inserted, appended, out);
+            return out.size();
+        }
+        int count = m_stringCount + inserted.size() + appended.size();
+        int dataSize = m_strings_size;
+        for (String s : inserted)
+            dataSize += getEncodedSize(s);
+        for (String s : appended)
+            dataSize += getEncodedSize(s);
+        dataSize = (dataSize + 3) & ~3;
+        return 28 + (count + styleOffsetCount) * 4 + dataSize + (m_styles == null ? 0 : m_styles.length * 4);
+    }
+
+    /**
+     * Writes the pool with strings inserted before index {@code insertAt} and appended
+     * after the last one. The offsets and data of the existing strings are copied as
+     * they are, and only the new strings are encoded, after the existing data.
+     * <p/>
+     * A pool changed through {@link #setString(int, String)} or {@link #addString(String)}
+     * is encoded in full instead.
+     */
+    public void write(int insertAt, Collection<String> inserted, Collection<String> appended, ZOutput out) throws IOException {
+        if (insertAt < 0 || insertAt > m_stringCount)
+            throw new IndexOutOfBoundsException("Invalid insert index (" + insertAt + ").");
+        int[] styles = getStyles(insertAt, inserted.size());
+        if (m_modified) {
+            String[] s = new String[m_stringCount + inserted.size() + appended.size()];
+            int index = 0;
+            for (int i = 0; i < insertAt; i++)
+                s[index++] = getString(i);
+            for (String string : inserted)
+                s[index++] = string;
+            for (int i = insertAt; i < m_stringCount; i++)
+                s[index++] = getString(i);
+            for (String string : appended)
+                s[index++] = string;
+            write(s, s.length, true, styles, out);
+            return;
+        }
+        int count = m_stringCount + inserted.size() + appended.size();
+        boolean modified = count != m_stringCount;
+        int stringsOffset = 28 + (count + styleOffsetCount) * 4;
+        int chunkSize = getChunkSize(insertAt, inserted, appended);
+        int stylesSize = m_styles == null ? 0 : m_styles.length * 4;
 
-        if (m_styles != null)
-            // System.out.println("write m_styles");
-            led.writeIntArray(m_styles);
         out.writeInt(CHUNK_STRINGPOOL_TYPE);
+        out.writeInt(chunkSize);
+        out.writeInt(count);
+        out.writeInt(styleOffsetCount);
+        out.writeInt(modified ? flags & ~SORTED : flags);
+        out.writeInt(stringsOffset);
+        out.writeInt(stylesOffset == 0 ? 0 : chunkSize - stylesSize);
+
+        int offset = m_strings_size;
+        out.writeIntArray(m_stringOffsets, 0, insertAt);
+        for (String s : inserted) {
+            out.writeInt(offset);
+            offset += getEncodedSize(s);
+        }
+        out.writeIntArray(m_stringOffsets, insertAt, m_stringCount);
+        for (String s : appended) {
+            out.writeInt(offset);
+            offset += getEncodedSize(s);
+        }
+        if (styleOffsetCount != 0)
+            out.writeIntArray(m_styleOffsets);
+
+        ByteBuffer data = m_data.duplicate();
+        data.limit(m_strings_size).position(0);
+        out.writeFully(data);
+        for (String s : inserted)
+            writeString(s, out);
+        for (String s : appended)
+            writeString(s, out);
+        for (; (offset & 3) != 0; offset++)
+            out.writeByte(0);
+
+        if (styles != null)
+            out.writeIntArray(styles);
+    }
 
-        byte[] b = outBuf.toByteArray();
-        outBuf.close();
-        led.close();
-        out.writeInt(b.length + 8);
-        out.writeFully(b);
+    // The spans of a style refer to their tag names by string index, so the names after
+    // the inserted strings move with them. Style i belongs to string i, so no string that
+    // has a style can move.
+    private int[] getStyles(int insertAt, int shift) throws IOException {
+        if (m_styles == null || shift == 0)
+            return m_styles;
+        if (styleOffsetCount > insertAt)
+            throw new IOException("Cannot insert strings before a string with a style.");
+        int[] styles = m_styles.clone();
+        for (int i = 0; i < styles.length; ) {
+            if (styles[i] == -1) {
+                i++;
+                continue;
+            }
+            if (styles[i] >= insertAt)
+                styles[i] += shift;
+            i += 3;
+        }
+        return styles;
     }
 
     public int getChunkSize() {
         return chunkSize;
     }
 
+    /**
+     * Replaces a string. A null string is rejected, because an empty slot is one that
+     * has not been decoded yet, and it would be decoded again from the pool.
+     */
     public void setString(int index, String s) {
+        if (s == null)
+            throw new NullPointerException("s");
+        if (index >= m_stringCount)
+            throw new ArrayIndexOutOfBoundsException(index);
+        String old = getString(index);
         m_strings[index] = s;
+        m_modified = true;
+        if (m_stringIndex == null)
+            return;
+        if (old != null) {
+            Integer oldIndex = m_stringIndex.get(old);
+            if (oldIndex != null && oldIndex == index) {
+                m_stringIndex.remove(old);
+                if (m_hasDuplicates) {
+                    for (int i = index + 1; i < m_stringCount; i++) {
+                        if (old.equals(getString(i))) {
+                            m_stringIndex.put(old, i);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        Integer current = m_stringIndex.get(s);
+        if (current == null || current > index)
+            m_stringIndex.put(s, index);
+        if (current != null)
+            m_hasDuplicates = true;
     }
 
     public String getString(int index) {
-        if (index >= 0)
-            return m_strings[index];
-        return null;
-    }
-
-    private static int[] getVarint(byte[] array, int offset) {
-        if ((array[offset] & 0x80) == 0)
-            return new int[]{array[offset] & 0x7f, 1};
-        else {
-            return new int[]{
-                    ((array[offset] & 0x7f) << 8) | array[offset + 1] & 0xFF, 2};
-        }
-
-        // int val = array[offset];
-        // boolean more = (val & 0x80) != 0;//1000 000
-        // val &= 127;
-        //
-        // if (!more)
-        // return new int[] { val, 1 };
-        // return new int[] { val << 8 | array[offset + 1] & 0xFF, 2 };
+        if (index < 0 || index >= m_stringCount)
+            return null;
+        String s = m_strings[index];
+        if (s == null && m_data != null && index < m_stringOffsets.length)
+            s = m_strings[index] = decodeString(m_data, m_stringOffsets[index], m_isUTF8);
+        return s;
     }
 
     protected static byte[] getVarBytes(int val) {
@@ -248,21 +403,35 @@ public class StringDecoder {
     }
 
     public int getSize() {
-        return m_strings.length;
+        return m_stringCount;
     }
 
-    private static String decodeString(int offset, int length, boolean utf8,
-                                       byte[] data) {
+    private static String decodeString(ByteBuffer data, int offset, boolean utf8) {
+        int length;
+        if (!utf8) {
+            length = data.getShort(offset) & 0xFFFF;
+            offset += 2;
+            if ((length & 0x8000) != 0) {
+                length = (length & 0x7FFF) << 16 | data.getShort(offset) & 0xFFFF;
+                offset += 2;
+            }
+            length *= 2;
+        } else {
+            offset += (data.get(offset) & 0x80) == 0 ? 1 : 2;
+            length = data.get(offset) & 0xFF;
+            offset++;
+            if ((length & 0x80) != 0) {
+                length = (length & 0x7F) << 8 | data.get(offset) & 0xFF;
+                offset++;
+            }
+        }
+        ByteBuffer slice = data.duplicate();
+        slice.limit(offset + length).position(offset);
         try {
-            return (utf8 ? UTF8_DECODER : UTF16LE_DECODER).decode(
-                    ByteBuffer.wrap(data, offset, length)).toString();
+            return (utf8 ? UTF8_DECODER : UTF16LE_DECODER).decode(slice).toString();
         } catch (CharacterCodingException ignored) {
         }
         return null;
     }
 
-    private static int getShort(byte[] array, int offset) {
-        return (array[offset + 1] & 0xFF) << 8 | array[offset] & 0xFF;
-    }
-
 }
@@ -0,0 +1,69 @@
+package bin.xml.decode;
+
+import android.util.TypedValue;
+
+/**
+ * Immutable attribute of an {@link AXmlElement}.
+ * <p/>
+ * For {@link TypedValue#TYPE_STRING} values the data is the index of the raw value in
+ * the string pool, and is assigned when the document is written.
+ */
+public class AXmlAttribute {
+    private final String namespace;
+    private final String name;
+    private final int resourceId;
+    private final int type;
+    private final int data;
+    private final String rawValue;
+
+    public AXmlAttribute(String namespace, String name, int resourceId, int type, int data, String rawValue) {
+        if (name == null)
+            throw new NullPointerException("name");
+        this.namespace = namespace;
+        this.name = name;
+        this.resourceId = resourceId;
+        this.type = type;
+        this.data = data;
+        this.rawValue = rawValue;
+    }
+
+    public static AXmlAttribute string(String namespace, String name, int resourceId, String value) {
+        return new AXmlAttribute(namespace, name, resourceId, TypedValue.TYPE_STRING, 0, value);
+    }
+
+    public static AXmlAttribute bool(String namespace, String name, int resourceId, boolean value) {
+        return new AXmlAttribute(namespace, name, resourceId, TypedValue.TYPE_INT_BOOLEAN, value ? -1 : 0, null);
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getResourceId() {
+        return resourceId;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getData() {
+        return data;
+    }
+
+    public String getRawValue() {
+        return rawValue;
+    }
+
+    public String getStringValue() {
+        return type == TypedValue.TYPE_STRING ? rawValue : null;
+    }
+
+    boolean matches(String namespace, String name) {
+        return this.name.equals(name) && (namespace == null ? this.namespace == null : namespace.equals(this.namespace));
+    }
+}
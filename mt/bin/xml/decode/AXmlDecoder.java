@@ -4,10 +4,10 @@ import bin.io.ZInput;
 import bin.io.ZOutput;
 import bin.util.StringDecoder;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class AXmlDecoder {
@@ -22,14 +22,9 @@ public class AXmlDecoder {
         mIn.readInt();// Chunk size
         mTableStrings = StringDecoder.read(this.mIn);
 
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        byte[] buf = new byte[2048];
-        int num;
-        while ((num = mIn.read(buf, 0, 2048)) != -1)
-            byteOut.write(buf, 0, num);
-        data = byteOut.toByteArray();
+        data = new byte[mIn.available()];
+        mIn.readFully(data);
         mIn.close();
-        byteOut.close();
     }
 
     public byte[] getData() {
@@ -45,55 +40,51 @@ public class AXmlDecoder {
     }
 
     public static AXmlDecoder decode(InputStream input) throws IOException {
-        AXmlDecoder axml = new AXmlDecoder(new ZInput(input));
+        return decode(new ZInput(input));
+    }
+
+    public static AXmlDecoder decode(ByteBuffer input) throws IOException {
+        return decode(new ZInput(input));
+    }
+
+    private static AXmlDecoder decode(ZInput input) throws IOException {
+        AXmlDecoder axml = new AXmlDecoder(input);
         axml.readStrings();
         return axml;
     }
 
     public void write(List<String> list, OutputStream out) throws IOException {
-        write(list, new ZOutput(out));
+        ZOutput zout = new ZOutput(out);
+        write(list, zout);
+        zout.flush();
     }
 
     public void write(List<String> list, ZOutput out) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZOutput buf = new ZOutput(baos);
+        ZOutput buf = new ZOutput(mTableStrings.getChunkSize() + data.length + 1024);
         String[] array = new String[list.size()];
         list.toArray(array);
         mTableStrings.write(array, buf);
         buf.writeFully(data);
         // write out
         out.writeInt(AXML_CHUNK_TYPE);
-        out.writeInt(baos.size() + 8);
-        out.writeFully(baos.toByteArray());
-        buf.close();
+        out.writeInt(buf.size() + 8);
+        buf.writeTo(out);
     }
 
     public void write(ZOutput out) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZOutput buf = new ZOutput(baos);
+        ZOutput buf = new ZOutput(mTableStrings.getChunkSize() + data.length + 1024);
         mTableStrings.write(buf);
         buf.writeFully(data);
         // write out
         out.writeInt(AXML_CHUNK_TYPE);
-        out.writeInt(baos.size() + 8);
-        out.writeFully(baos.toByteArray());
-        baos.reset();
-        buf.close();
+        out.writeInt(buf.size() + 8);
+        buf.writeTo(out);
     }
 
     public byte[] encode() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZOutput buf = new ZOutput(baos);
-        mTableStrings.write(buf);
-        buf.writeFully(data);
-
-        byte[] bytes = baos.toByteArray();
-        baos.reset();
-        // write out
-        buf.writeInt(AXML_CHUNK_TYPE);
-        buf.writeInt(bytes.length + 8);
-        buf.writeFully(bytes);
-        return baos.toByteArray();
+        ZOutput buf = new ZOutput(mTableStrings.getChunkSize() + data.length + 1024);
+        write(buf);
+        return buf.toByteArray();
     }
 
 
@@ -0,0 +1,425 @@
+package bin.xml.decode;
+
+import android.util.TypedValue;
+import bin.io.ZOutput;
+import bin.util.StreamUtil;
+import bin.util.StringDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutable tree of a binary xml file.
+ * <p/>
+ * Edits only mark the affected elements. {@link #writeTo(OutputStream)} then writes
+ * the whole file in one pass: the existing strings of the pool are copied with the new
+ * ones spliced in, the bytes of unchanged subtrees are copied from the source, and only
+ * the changed start tags and new elements are encoded. When a new attribute needs a resource id that is
+ * not in the resource map yet, the string indexes after the map shift, and the copied
+ * chunks get their string references rewritten on the way.
+ */
+public class AXmlDocument {
+    private static final int CHUNK_AXML_FILE = 0x00080003;
+    private static final int CHUNK_RESOURCEIDS = 0x00080180;
+    private static final int CHUNK_XML_START_NAMESPACE = 0x00100100;
+    private static final int CHUNK_XML_END_NAMESPACE = 0x00100101;
+    private static final int CHUNK_XML_START_TAG = 0x00100102;
+    private static final int CHUNK_XML_END_TAG = 0x00100103;
+    private static final int CHUNK_XML_TEXT = 0x00100104;
+
+    private static final int ATTR_ID = 0x010100d0;
+
+    private final ByteBuffer src;
+    private final StringDecoder strings;
+    private final int[] resourceIds;
+    // pseudo element holding the root element and the chunks around it
+    private final AXmlElement body;
+
+    private AXmlDocument(ByteBuffer buffer) throws IOException {
+        src = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        AXmlResourceParser parser = new AXmlResourceParser();
+        parser.open(src.duplicate());
+
+        AXmlElement current = null;
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_DOCUMENT) {
+                current = new AXmlElement(null, null, null, 0);
+                current.content = getBodyOffset();
+            } else if (type == XmlPullParser.START_TAG) {
+                String namespace = parser.getNamespace();
+                AXmlElement element = new AXmlElement(current, namespace, parser.getName(), parser.getLineNumber());
+                element.startTag = parser.getChunkOffset();
+                element.content = element.startTag + src.getInt(element.startTag + 4);
+                int count = parser.getAttributeCount();
+                element.attributes.ensureCapacity(count + 1);
+                for (int i = 0; i < count; i++) {
+                    String attributeNamespace = parser.getAttributeNamespace(i);
+                    int rawValue = parser.getAttributeValueString(i);
+                    element.attributes.add(new AXmlAttribute(
+                            attributeNamespace.isEmpty() ? null : attributeNamespace,
+                            parser.getAttributeName(i), parser.getAttributeNameResource(i),
+                            parser.getAttributeValueType(i), parser.getAttributeValueData(i),
+                            rawValue == -1 ? null : parser.getString(rawValue)));
+                }
+                current.children.add(element);
+                current.originalChildren.add(element);
+                current = element;
+            } else if (type == XmlPullParser.END_TAG) {
+                current.endTag = parser.getChunkOffset();
+                current.end = current.endTag + src.getInt(current.endTag + 4);
+                current = current.parent;
+            }
+        }
+        if (current == null || current.name != null || current.children.isEmpty())
+            throw new IOException("No root element.");
+        current.endTag = src.limit();
+        current.end = src.limit();
+        body = current;
+        strings = parser.getStrings();
+        int[] ids = parser.getResourceIDs();
+        resourceIds = ids == null ? new int[0] : ids;
+    }
+
+    private int getBodyOffset() {
+        int offset = src.getShort(2) & 0xFFFF;
+        offset += src.getInt(offset + 4);
+        if (src.getInt(offset) == CHUNK_RESOURCEIDS)
+            offset += src.getInt(offset + 4);
+        return offset;
+    }
+
+    public static AXmlDocument parse(ByteBuffer buffer) throws IOException {
+        return new AXmlDocument(buffer);
+    }
+
+    public static AXmlDocument parse(InputStream is) throws IOException {
+        return new AXmlDocument(ByteBuffer.wrap(StreamUtil.readBytes(is)));
+    }
+
+    public AXmlElement getRootElement() {
+        return body.children.isEmpty() ? null : body.children.get(0);
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ZOutput out = new ZOutput(src.limit() + 1024);
+        write(out);
+        return out.toByteArray();
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        ZOutput out = new ZOutput(os);
+        write(out);
+        out.flush();
+    }
+
+    ///////////////////////////////////
+
+    private void write(ZOutput out) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.collect(body);
+
+        encoder.indexNewStrings();
+        Collection<String> names = encoder.newResourceNames.values();
+        Collection<String> added = encoder.newStrings.keySet();
+        int poolSize = strings.getChunkSize(resourceIds.length, names, added);
+        int resourceCount = resourceIds.length + encoder.newResourceNames.size();
+
+        encoder.counting = true;
+        encoder.writeContent(body);
+        int bodySize = encoder.size;
+        encoder.counting = false;
+        encoder.out = out;
+
+        out.writeInt(CHUNK_AXML_FILE);
+        out.writeInt(8 + poolSize + (resourceCount == 0 ? 0 : 8 + resourceCount * 4) + bodySize);
+        strings.write(resourceIds.length, names, added, out);
+        if (resourceCount != 0) {
+            out.writeInt(CHUNK_RESOURCEIDS);
+            out.writeInt(8 + resourceCount * 4);
+            out.writeIntArray(resourceIds);
+            for (int id : encoder.newResourceNames.keySet())
+                out.writeInt(id);
+        }
+        encoder.writeContent(body);
+    }
+
+    private class Encoder {
+        // resource ids missing from the resource map, with the attribute names to map them to
+        final LinkedHashMap<Integer, String> newResourceNames = new LinkedHashMap<>();
+        final LinkedHashMap<String, Integer> newStrings = new LinkedHashMap<>();
+        final HashMap<Integer, Integer> resourceIndex = new HashMap<>();
+        boolean counting;
+        int size;
+        ZOutput out;
+
+        Encoder() {
+            for (int i = resourceIds.length - 1; i >= 0; i--)
+                resourceIndex.put(resourceIds[i], i);
+        }
+
+        void collect(AXmlElement element) {
+            if (!element.dirty)
+                return;
+            if (element.modified) {
+                addString(element.namespace);
+                addString(element.name);
+                for (AXmlAttribute attribute : element.attributes) {
+                    int id = attribute.getResourceId();
+                    if (id != 0 && !resourceIndex.containsKey(id) && !newResourceNames.containsKey(id))
+                        newResourceNames.put(id, attribute.getName());
+                    else if (id == 0)
+                        addString(attribute.getName());
+                    addString(attribute.getNamespace());
+                    addString(attribute.getRawValue());
+                }
+            }
+            for (AXmlElement child : element.children)
+                collect(child);
+        }
+
+        private void addString(String s) {
+            if (s != null && strings.find(s) == -1 && !newStrings.containsKey(s))
+                newStrings.put(s, -1);
+        }
+
+        // the names of new resource ids go after the mapped strings, other new strings at the end
+        void indexNewStrings() {
+            int index = strings.getSize() + newResourceNames.size();
+            for (Map.Entry<String, Integer> entry : newStrings.entrySet())
+                entry.setValue(index++);
+        }
+
+        int indexOf(String s) {
+            if (s == null)
+                return -1;
+            int index = strings.find(s);
+            if (index != -1)
+                return remap(index);
+            return newStrings.get(s);
+        }
+
+        int indexOfName(AXmlAttribute attribute) {
+            int id = attribute.getResourceId();
+            if (id == 0)
+                return indexOf(attribute.getName());
+            Integer index = resourceIndex.get(id);
+            if (index != null)
+                return index;
+            int i = resourceIds.length;
+            for (Integer newId : newResourceNames.keySet()) {
+                if (newId == id)
+                    return i;
+                i++;
+            }
+            throw new IllegalStateException();
+        }
+
+        int remap(int index) {
+            return index >= resourceIds.length ? index + newResourceNames.size() : index;
+        }
+
+        ///////////////////////////////////
+
+        void writeElement(AXmlElement element) throws IOException {
+            if (!element.dirty) {
+                copy(element.startTag, element.end);
+                return;
+            }
+            if (element.modified)
+                writeStartTag(element);
+            else
+                copy(element.startTag, element.content);
+            writeContent(element);
+            if (element.isNew())
+                writeEndTag(element);
+            else
+                copy(element.endTag, element.end);
+        }
+
+        // Writes the children of an element together with the chunks between them,
+        // skipping the source ranges of removed children.
+        void writeContent(AXmlElement element) throws IOException {
+            if (element.isNew() && element.name != null) {
+                for (AXmlElement child : element.children)
+                    writeElement(child);
+                return;
+            }
+            int offset = element.content;
+            int original = 0;
+            List<AXmlElement> originalChildren = element.originalChildren;
+            for (AXmlElement child : element.children) {
+                if (!child.isNew()) {
+                    while (originalChildren.get(original) != child) {
+                        AXmlElement removed = originalChildren.get(original++);
+                        copy(offset, removed.startTag);
+                        offset = removed.end;
+                    }
+                    original++;
+                    copy(offset, child.startTag);
+                    offset = child.end;
+                }
+                writeElement(child);
+            }
+            while (original < originalChildren.size()) {
+                AXmlElement removed = originalChildren.get(original++);
+                copy(offset, removed.startTag);
+                offset = removed.end;
+            }
+            copy(offset, element.endTag);
+        }
+
+        private void writeStartTag(AXmlElement element) throws IOException {
+            ArrayList<AXmlAttribute> attributes = new ArrayList<>(element.attributes);
+            // attributes with a resource id first, ordered by id
+            attributes.sort((a, b) -> {
+                long x = a.getResourceId() == 0 ? Long.MAX_VALUE : a.getResourceId() & 0xFFFFFFFFL;
+                long y = b.getResourceId() == 0 ? Long.MAX_VALUE : b.getResourceId() & 0xFFFFFFFFL;
+                return Long.compare(x, y);
+            });
+            int idIndex = 0;
+            int classIndex = 0;
+            int styleIndex = 0;
+            for (int i = 0; i < attributes.size(); i++) {
+                AXmlAttribute attribute = attributes.get(i);
+                if (attribute.getResourceId() == ATTR_ID)
+                    idIndex = i + 1;
+                else if (attribute.getNamespace() == null && attribute.getName().equals("class"))
+                    classIndex = i + 1;
+                else if (attribute.getNamespace() == null && attribute.getName().equals("style"))
+                    styleIndex = i + 1;
+            }
+
+            writeInt(CHUNK_XML_START_TAG);
+            writeInt(36 + attributes.size() * 20);
+            if (element.isNew()) {
+                writeInt(element.lineNumber);
+                writeInt(-1);
+            } else {
+                writeInt(src.getInt(element.startTag + 8));
+                writeInt(remapRaw(src.getInt(element.startTag + 12)));
+            }
+            writeInt(indexOf(element.namespace));
+            writeInt(indexOf(element.name));
+            writeInt(20 << 16 | 20);
+            writeInt(idIndex << 16 | attributes.size());
+            writeInt(styleIndex << 16 | classIndex);
+            for (AXmlAttribute attribute : attributes) {
+                int rawValue = indexOf(attribute.getRawValue());
+                writeInt(indexOf(attribute.getNamespace()));
+                writeInt(indexOfName(attribute));
+                writeInt(rawValue);
+                writeInt(attribute.getType() << 24 | 8);
+                writeInt(attribute.getType() == TypedValue.TYPE_STRING ? rawValue : attribute.getData());
+            }
+        }
+
+        private void writeEndTag(AXmlElement element) throws IOException {
+            writeInt(CHUNK_XML_END_TAG);
+            writeInt(24);
+            writeInt(element.lineNumber);
+            writeInt(-1);
+            writeInt(indexOf(element.namespace));
+            writeInt(indexOf(element.name));
+        }
+
+        private void writeInt(int value) throws IOException {
+            if (counting)
+                size += 4;
+            else
+                out.writeInt(value);
+        }
+
+        private int remapRaw(int index) {
+            return index == -1 ? -1 : remap(index);
+        }
+
+        private void copy(int start, int end) throws IOException {
+            if (end <= start)
+                return;
+            if (counting) {
+                size += end - start;
+            } else if (newResourceNames.isEmpty()) {
+                copyBytes(start, end);
+            } else {
+                copyRemapped(start, end);
+            }
+        }
+
+        // Copies whole chunks, rewriting their string references.
+        private void copyRemapped(int start, int end) throws IOException {
+            int offset = start;
+            while (offset < end) {
+                int type = src.getInt(offset);
+                int chunkSize = src.getInt(offset + 4);
+                int chunkEnd = offset + chunkSize;
+                out.writeInt(type);
+                out.writeInt(chunkSize);
+                if (type < CHUNK_XML_START_NAMESPACE || type > CHUNK_XML_TEXT) {
+                    copyBytes(offset + 8, chunkEnd);
+                    offset = chunkEnd;
+                    continue;
+                }
+                // line number, comment
+                out.writeInt(src.getInt(offset + 8));
+                out.writeInt(remapRaw(src.getInt(offset + 12)));
+                int i = offset + 16;
+                switch (type) {
+                    case CHUNK_XML_START_NAMESPACE:
+                    case CHUNK_XML_END_NAMESPACE:
+                    case CHUNK_XML_END_TAG:
+                        out.writeInt(remapRaw(src.getInt(i)));
+                        out.writeInt(remapRaw(src.getInt(i + 4)));
+                        i += 8;
+                        break;
+                    case CHUNK_XML_TEXT:
+                        out.writeInt(remapRaw(src.getInt(i)));
+                        int valueType = src.get(i + 7) & 0xFF;
+                        out.writeInt(src.getInt(i + 4));
+                        int data = src.getInt(i + 8);
+                        out.writeInt(valueType == TypedValue.TYPE_STRING ? remapRaw(data) : data);
+                        i += 12;
+                        break;
+                    case CHUNK_XML_START_TAG:
+                        out.writeInt(remapRaw(src.getInt(i)));
+                        out.writeInt(remapRaw(src.getInt(i + 4)));
+                        int attributeStart = src.getShort(i + 8) & 0xFFFF;
+                        int attributeSize = src.getShort(i + 10) & 0xFFFF;
+                        int count = src.getShort(i + 12) & 0xFFFF;
+                        copyBytes(i + 8, i + attributeStart);
+                        i += attributeStart;
+                        for (int j = 0; j < count; j++, i += attributeSize) {
+                            out.writeInt(remapRaw(src.getInt(i)));
+                            out.writeInt(remapRaw(src.getInt(i + 4)));
+                            out.writeInt(remapRaw(src.getInt(i + 8)));
+                            int value = src.getInt(i + 12);
+                            out.writeInt(value);
+                            int attributeData = src.getInt(i + 16);
+                            out.writeInt(value >>> 24 == TypedValue.TYPE_STRING ? remapRaw(attributeData) : attributeData);
+                            copyBytes(i + 20, i + attributeSize);
+                        }
+                        break;
+                }
+                copyBytes(i, chunkEnd);
+                offset = chunkEnd;
+            }
+        }
+
+        private void copyBytes(int start, int end) throws IOException {
+            if (end <= start)
+                return;
+            ByteBuffer slice = src.duplicate();
+            slice.limit(end).position(start);
+            out.writeFully(slice);
+        }
+    }
+}
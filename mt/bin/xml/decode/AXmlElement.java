@@ -0,0 +1,176 @@
+package bin.xml.decode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Element of an {@link AXmlDocument}.
+ * <p/>
+ * Elements read from a file remember where their chunks are in the source, so that
+ * an element that was not changed, and has no changed descendants, is written back by
+ * copying its bytes.
+ */
+public class AXmlElement {
+    final AXmlElement parent;
+    final String namespace;
+    final String name;
+    final int lineNumber;
+    final ArrayList<AXmlAttribute> attributes = new ArrayList<>();
+    final ArrayList<AXmlElement> children = new ArrayList<>();
+    final ArrayList<AXmlElement> originalChildren = new ArrayList<>();
+
+    // offsets of the start tag chunk, the end of the start tag chunk, the end tag chunk
+    // and the end of the end tag chunk in the source; -1 for new elements
+    int startTag = -1;
+    int content = -1;
+    int endTag = -1;
+    int end = -1;
+
+    // the start tag has to be rewritten
+    boolean modified;
+    // this element or one of its descendants has to be rewritten
+    boolean dirty;
+
+    AXmlElement(AXmlElement parent, String namespace, String name, int lineNumber) {
+        this.parent = parent;
+        this.namespace = namespace;
+        this.name = name;
+        this.lineNumber = lineNumber;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Returns the parent element, or null for the root element.
+     */
+    public AXmlElement getParent() {
+        return parent == null || parent.name == null ? null : parent;
+    }
+
+    /////////////////////////////////// attributes
+
+    public List<AXmlAttribute> getAttributes() {
+        return Collections.unmodifiableList(attributes);
+    }
+
+    public AXmlAttribute getAttribute(int resourceId) {
+        int index = indexOfAttribute(resourceId);
+        return index == -1 ? null : attributes.get(index);
+    }
+
+    public AXmlAttribute getAttribute(String namespace, String name) {
+        int index = indexOfAttribute(namespace, name);
+        return index == -1 ? null : attributes.get(index);
+    }
+
+    /**
+     * Adds the attribute, replacing an existing one with the same resource id or, for
+     * attributes without a resource id, the same namespace and name.
+     */
+    public void setAttribute(AXmlAttribute attribute) {
+        int index = attribute.getResourceId() != 0
+                ? indexOfAttribute(attribute.getResourceId())
+                : indexOfAttribute(attribute.getNamespace(), attribute.getName());
+        if (index == -1)
+            attributes.add(attribute);
+        else
+            attributes.set(index, attribute);
+        markModified();
+    }
+
+    public boolean removeAttribute(int resourceId) {
+        return removeAttributeAt(indexOfAttribute(resourceId));
+    }
+
+    public boolean removeAttribute(String namespace, String name) {
+        return removeAttributeAt(indexOfAttribute(namespace, name));
+    }
+
+    private boolean removeAttributeAt(int index) {
+        if (index == -1)
+            return false;
+        attributes.remove(index);
+        markModified();
+        return true;
+    }
+
+    private int indexOfAttribute(int resourceId) {
+        for (int i = 0; i < attributes.size(); i++) {
+            if (attributes.get(i).getResourceId() == resourceId)
+                return i;
+        }
+        return -1;
+    }
+
+    private int indexOfAttribute(String namespace, String name) {
+        for (int i = 0; i < attributes.size(); i++) {
+            if (attributes.get(i).matches(namespace, name))
+                return i;
+        }
+        return -1;
+    }
+
+    /////////////////////////////////// children
+
+    public List<AXmlElement> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * Returns the first child element with the given name, or null.
+     */
+    public AXmlElement getChild(String name) {
+        for (AXmlElement child : children) {
+            if (name.equals(child.name))
+                return child;
+        }
+        return null;
+    }
+
+    public AXmlElement addChild(String namespace, String name) {
+        return addChild(children.size(), namespace, name);
+    }
+
+    public AXmlElement addChild(int index, String namespace, String name) {
+        AXmlElement child = new AXmlElement(this, namespace, name, lineNumber);
+        child.modified = true;
+        child.dirty = true;
+        children.add(index, child);
+        markDirty();
+        return child;
+    }
+
+    public boolean removeChild(AXmlElement child) {
+        if (!children.remove(child))
+            return false;
+        markDirty();
+        return true;
+    }
+
+    ///////////////////////////////////
+
+    boolean isNew() {
+        return startTag == -1;
+    }
+
+    private void markModified() {
+        modified = true;
+        markDirty();
+    }
+
+    private void markDirty() {
+        for (AXmlElement e = this; e != null && !e.dirty; e = e.parent)
+            e.dirty = true;
+    }
+}
@@ -22,6 +22,7 @@ import bin.util.StringDecoder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 
 /**
  * @author Dmitry Skiba
@@ -50,6 +51,13 @@ public class AXmlResourceParser implements XmlPullParser {
         }
     }
 
+    public void open(ByteBuffer buffer) throws IOException {
+        close();
+        if (buffer != null) {
+            m_reader = new ZInput(buffer);
+        }
+    }
+
     public void open(InputStream stream, StringDecoder strings) throws IOException {
         close();
         m_reader = new ZInput(stream);
@@ -755,6 +763,17 @@ public class AXmlResourceParser implements XmlPullParser {
         return m_strings;
     }
 
+    final int[] getResourceIDs() {
+        return m_resourceIDs;
+    }
+
+    /**
+     * Offset of the chunk of the current event, relative to the start of the input.
+     */
+    final int getChunkOffset() {
+        return m_chunkOffset;
+    }
+
     ///////////////////////////////////
 
     private final int getAttributeOffset(int index) {
@@ -840,6 +859,7 @@ public class AXmlResourceParser implements XmlPullParser {
                 // Fake event, see CHUNK_XML_START_TAG handler.
                 chunkType = CHUNK_XML_START_TAG;
             } else {
+                m_chunkOffset = m_reader.getOffset();
                 chunkType = m_reader.readInt();
             }
 
@@ -953,6 +973,7 @@ public class AXmlResourceParser implements XmlPullParser {
     private NamespaceStack m_namespaces = new NamespaceStack();
 
     private boolean m_decreaseDepth;
+    private int m_chunkOffset;
 
     private int m_event;
     private int m_lineNumber;
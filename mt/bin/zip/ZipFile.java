@@ -25,6 +25,8 @@ import bin.zip.extrafield.UnicodeCommentExtraField;
 import bin.zip.extrafield.UnicodePathExtraField;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.zip.CRC32;
 import java.util.zip.Inflater;
@@ -279,6 +281,30 @@ public class ZipFile implements Closeable {
         }
     }
 
+    /**
+     * Returns the contents of the given entry as a read-only buffer.
+     * STORED entries are memory-mapped straight from the archive, so
+     * no heap copy is made; other entries are inflated into a heap buffer.
+     *
+     * @param ze the entry to get the buffer for.
+     * @return a buffer holding the entry data - or <code>null</code>
+     * if the entry does not belong to this archive.
+     * @throws IOException if the entry could not be mapped or read
+     */
+    public ByteBuffer getByteBuffer(ZipEntry ze) throws IOException {
+        OffsetEntry offsetEntry = entries.get(ze);
+        if (offsetEntry == null)
+            return null;
+        if (ze.getMethod() == ZipEntry.STORED)
+            return archive.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    offsetEntry.dataOffset, ze.getCompressedSize());
+        byte[] data = new byte[(int) ze.getSize()];
+        try (DataInputStream is = new DataInputStream(getInputStream(ze))) {
+            is.readFully(data);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
     public InputStream getRawInputStream(ZipEntry ze)
             throws IOException {
         OffsetEntry offsetEntry = entries.get(ze);
@@ -149,6 +149,11 @@ public class ZipOutputStream extends FilterOutputStream {
      */
     private int method = java.util.zip.ZipEntry.DEFLATED;
 
+    /**
+     * Time for entries that do not have one, -1 for the current time.
+     */
+    private long entryTime = -1;
+
     /**
      * List of ZipEntries written so far.
      *
@@ -549,7 +554,7 @@ public class ZipOutputStream extends FilterOutputStream {
         }
 
         if (entry.getTime() == -1) { // not specified
-            entry.setTime(System.currentTimeMillis());
+            entry.setTime(entryTime != -1 ? entryTime : System.currentTimeMillis());
         }
 
         // Size/CRC not required if RandomAccessFile is used
@@ -644,6 +649,27 @@ public class ZipOutputStream extends FilterOutputStream {
         this.method = method;
     }
 
+    /**
+     * The default compression method for subsequent entries.
+     *
+     * @return an <code>int</code> from java.util.zip.ZipEntry
+     */
+    public int getMethod() {
+        return method;
+    }
+
+    /**
+     * Sets the time for subsequent entries that do not have one, so that
+     * writing the same entries again gives the same bytes.
+     * <p>
+     * <p>Default is -1, which stamps them with the current time.</p>
+     *
+     * @param time the time in milliseconds, or -1
+     */
+    public void setEntryTime(long time) {
+        this.entryTime = time;
+    }
+
     /**
      * Writes bytes to ZIP entry.
      *
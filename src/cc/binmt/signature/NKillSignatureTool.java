@@ -1,20 +1,22 @@
 package cc.binmt.signature;
 
+import bin.dex.DexMerger;
+import bin.dex.MultiDexWriter;
+import bin.dex.ZipEntryDataStore;
 import bin.signer.ApkSigner;
 import bin.signer.key.KeystoreKey;
 import bin.util.StreamUtil;
-import bin.xml.decode.AXmlDecoder;
-import bin.xml.decode.AXmlResourceParser;
-import bin.xml.decode.XmlPullParser;
+import bin.xml.decode.AXmlAttribute;
+import bin.xml.decode.AXmlDocument;
+import bin.xml.decode.AXmlElement;
 import bin.zip.ZipEntry;
 import bin.zip.ZipFile;
 import bin.zip.ZipOutputStream;
 import org.jf.dexlib2.Opcodes;
-import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.util.DexValidator;
 import org.jf.dexlib2.writer.builder.DexBuilder;
-import org.jf.dexlib2.writer.io.MemoryDataStore;
 import org.jf.smali.Smali;
 import org.jf.smali.SmaliOptions;
 import sun.security.pkcs.PKCS7;
@@ -22,17 +24,54 @@ import sun.security.pkcs.PKCS7;
 import java.io.*;
 import java.security.cert.Certificate;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class NKillSignatureTool {
     private static boolean customApplication = false;
     private static String customApplicationName;
     private static String packageName;
     private static byte[] signatures;
+    private static ClassDef hookClassDef;
+    // 可重现模式下新写入条目的时间，取本地时间的2008-01-01，使zip中的DOS时间在任何时区都相同
+    private static final long REPRODUCIBLE_TIME = new GregorianCalendar(2008, Calendar.JANUARY, 1).getTimeInMillis();
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("merge")) {
+            merge(args);
+            return;
+        }
         process();
     }
 
+    // merge <输出zip> <dex或zip>...
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void merge(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("用法：java -jar nkstool.jar merge <输出zip> <dex或zip>...");
+            return;
+        }
+        File outFile = new File(args[1]);
+        DexMerger merger = new DexMerger(Opcodes.getDefault());
+        merger.setExecutor(ForkJoinPool.commonPool());
+        for (int i = 2; i < args.length; i++) {
+            System.out.println("正在读取：" + args[i]);
+            merger.addFile(new File(args[i]));
+        }
+
+        System.out.println("\n正在合并dex：" + outFile.getPath());
+        int dexCount;
+        try (ZipOutputStream zos = new ZipOutputStream(outFile)) {
+            dexCount = merger.writeTo(zos);
+        } catch (DexMerger.DuplicateClassException e) {
+            outFile.delete();
+            System.out.println("合并失败，存在重复的类：");
+            for (Map.Entry<String, List<String>> entry : e.getConflicts().entrySet())
+                System.out.println("  " + entry.getKey() + "  <-  " + String.join(", ", entry.getValue()));
+            return;
+        }
+        System.out.println("\n合并完成，共" + dexCount + "个dex");
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private static void process() throws Exception {
         Properties properties = new Properties();
@@ -47,11 +86,12 @@ public class NKillSignatureTool {
         String signPassword = properties.getProperty("sign.password");
         String signAlias = properties.getProperty("sign.alias");
         String signAliasPassword = properties.getProperty("sign.aliasPassword");
+        boolean reproducible = "true".equalsIgnoreCase(properties.getProperty("zip.reproducible"));
 
         System.out.println("正在读取签名：" + signApk.getPath());
         signatures = getApkSignatureData(signApk);
         byte[] manifestData;
-        byte[] dexData;
+        DexBuilder dexBuilder;
 
         System.out.println("\n正在读取APK：" + srcApk.getPath());
 
@@ -61,21 +101,42 @@ public class NKillSignatureTool {
             manifestData = parseManifest(zipFile.getInputStream(manifestEntry));
 
             ZipEntry dexEntry = zipFile.getEntry("classes.dex");
-            DexBackedDexFile dex = DexBackedDexFile.fromInputStream(Opcodes.getDefault(),
-                    new BufferedInputStream(zipFile.getInputStream(dexEntry)));
+            DexBackedDexFile dex = new DexBackedDexFile(Opcodes.getDefault(), zipFile.getByteBuffer(dexEntry));
+            dex.setStringCacheSize(0x10000);
 
             System.out.println("  --正在处理classes.dex");
-            dexData = processDex(dex);
+            dexBuilder = processDex(dex);
 
             System.out.println("\n正在写出APK：" + outApk.getPath());
             try (ZipOutputStream zos = new ZipOutputStream(outApk)) {
+                if (reproducible)
+                    zos.setEntryTime(REPRODUCIBLE_TIME);
                 zos.putNextEntry("AndroidManifest.xml");
                 zos.write(manifestData);
                 zos.closeEntry();
 
-                zos.putNextEntry("classes.dex");
-                zos.write(dexData);
-                zos.closeEntry();
+                if (!dexBuilder.hasOverflowed()) {
+                    ZipEntryDataStore store = new ZipEntryDataStore(zos, "classes.dex");
+                    try {
+                        dexBuilder.setExecutor(ForkJoinPool.commonPool());
+                        dexBuilder.writeTo(store);
+                        DexValidator.validate(store.map());
+                    } catch (Exception e) {
+                        store.delete();
+                        throw e;
+                    }
+                    store.writeEntry();
+                } else {
+                    System.out.println("  --classes.dex超出64K限制，拆分为多个dex");
+                    int dexNumber = 2;
+                    while (zipFile.getEntry("classes" + dexNumber + ".dex") != null)
+                        dexNumber++;
+                    MultiDexWriter multiDexWriter = new MultiDexWriter(zos, Opcodes.getDefault());
+                    multiDexWriter.setSecondaryDexNumber(dexNumber);
+                    multiDexWriter.addClass(hookClassDef);
+                    multiDexWriter.addClasses(dex.getClasses());
+                    multiDexWriter.finish();
+                }
 
                 Enumeration<ZipEntry> enumeration = zipFile.getEntries();
                 while (enumeration.hasMoreElements()) {
@@ -91,7 +152,7 @@ public class NKillSignatureTool {
                 System.out.println("\n正在签名APK：" + outApk.getPath());
                 KeystoreKey keystoreKey = new KeystoreKey(signFile, signPassword, signAlias, signAliasPassword);
                 File temp = new File(outApk.getPath() + ".tmp");
-                ApkSigner.signApk(outApk, temp, keystoreKey,null);
+                ApkSigner.signApk(outApk, temp, keystoreKey, reproducible ? REPRODUCIBLE_TIME : -1, null);
                 outApk.delete();
                 temp.renameTo(outApk);
             }
@@ -100,7 +161,7 @@ public class NKillSignatureTool {
         }
     }
 
-    private static byte[] processDex(DexBackedDexFile dex) throws Exception {
+    private static DexBuilder processDex(DexBackedDexFile dex) throws Exception {
         DexBuilder dexBuilder = new DexBuilder(Opcodes.getDefault());
         try (InputStream fis = NKillSignatureTool.class.getResourceAsStream("PmsHookApplication.smali")) {
             String src = new String(StreamUtil.readBytes(fis), "utf-8");
@@ -116,115 +177,32 @@ public class NKillSignatureTool {
             if (signatures == null)
                 throw new NullPointerException("Signatures is null");
             src = src.replace("### Signatures Data ###", Base64.getEncoder().encodeToString(signatures));
-            ClassDef classDef = Smali.assembleSmaliFile(src, dexBuilder, new SmaliOptions());
-            if (classDef == null)
+            hookClassDef = Smali.assembleSmaliFile(src, dexBuilder, new SmaliOptions());
+            if (hookClassDef == null)
                 throw new Exception("Parse smali failed");
-            for (DexBackedClassDef dexBackedClassDef : dex.getClasses()) {
-                dexBuilder.internClassDef(dexBackedClassDef);
-            }
+            dexBuilder.internClasses(dex.getClasses(), ForkJoinPool.commonPool());
         }
-        MemoryDataStore store = new MemoryDataStore();
-        dexBuilder.writeTo(store);
-        return Arrays.copyOf(store.getBufferData(), store.getSize());
+        return dexBuilder;
     }
 
     private static byte[] parseManifest(InputStream is) throws IOException {
-        AXmlDecoder axml = AXmlDecoder.decode(is);
-        AXmlResourceParser parser = new AXmlResourceParser();
-        parser.open(new ByteArrayInputStream(axml.getData()), axml.mTableStrings);
-        boolean success = false;
-
-        int type;
-        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
-            if (type != XmlPullParser.START_TAG)
-                continue;
-            if (parser.getName().equals("manifest")) {
-                int size = parser.getAttributeCount();
-                for (int i = 0; i < size; ++i) {
-                    if (parser.getAttributeName(i).equals("package")) {
-                        packageName = parser.getAttributeValue(i);
-                    }
-                }
-            } else if (parser.getName().equals("application")) {
-                int size = parser.getAttributeCount();
-                for (int i = 0; i < size; ++i) {
-                    if (parser.getAttributeNameResource(i) == 0x01010003) {
-                        customApplication = true;
-                        customApplicationName = parser.getAttributeValue(i);
-                        int index = axml.mTableStrings.getSize();
-                        byte[] data = axml.getData();
-                        int off = parser.currentAttributeStart + 20 * i;
-                        off += 8;
-                        writeInt(data, off, index);
-                        off += 8;
-                        writeInt(data, off, index);
-                    }
-                }
-                if (!customApplication) {
-                    int off = parser.currentAttributeStart;
-                    byte[] data = axml.getData();
-                    byte[] newData = new byte[data.length + 20];
-                    System.arraycopy(data, 0, newData, 0, off);
-                    System.arraycopy(data, off, newData, off + 20, data.length - off);
-
-                    // chunkSize
-                    int chunkSize = readInt(newData, off - 32);
-                    writeInt(newData, off - 32, chunkSize + 20);
-                    // attributeCount
-                    writeInt(newData, off - 8, size + 1);
-
-                    int idIndex = parser.findResourceID(0x01010003);
-                    if (idIndex == -1)
-                        throw new IOException("idIndex == -1");
-
-                    boolean isMax = true;
-                    for (int i = 0; i < size; ++i) {
-                        int id = parser.getAttributeNameResource(i);
-                        if (id > 0x01010003) {
-                            isMax = false;
-                            if (i != 0) {
-                                System.arraycopy(newData, off + 20, newData, off, 20 * i);
-                                off += 20 * i;
-                            }
-                            break;
-                        }
-                    }
-                    if (isMax) {
-                        System.arraycopy(newData, off + 20, newData, off, 20 * size);
-                        off += 20 * size;
-                    }
-
-                    writeInt(newData, off, axml.mTableStrings.find("http://schemas.android.com/apk/res/android"));
-                    writeInt(newData, off + 4, idIndex);
-                    writeInt(newData, off + 8, axml.mTableStrings.getSize());
-                    writeInt(newData, off + 12, 0x03000008);
-                    writeInt(newData, off + 16, axml.mTableStrings.getSize());
-                    axml.setData(newData);
-                }
-                success = true;
-                break;
-            }
-        }
-        if (!success)
+        AXmlDocument axml = AXmlDocument.parse(is);
+        AXmlElement manifest = axml.getRootElement();
+        AXmlAttribute packageAttribute = manifest.getAttribute(null, "package");
+        if (packageAttribute != null)
+            packageName = packageAttribute.getStringValue();
+        AXmlElement application = manifest.getChild("application");
+        if (application == null)
             throw new IOException();
-        ArrayList<String> list = new ArrayList<>(axml.mTableStrings.getSize());
-        axml.mTableStrings.getStrings(list);
-        list.add("cc.binmt.signature.PmsHookApplication");
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        axml.write(list, baos);
-        return baos.toByteArray();
-    }
 
-    private static void writeInt(byte[] data, int off, int value) {
-        data[off++] = (byte) (value & 0xFF);
-        data[off++] = (byte) ((value >>> 8) & 0xFF);
-        data[off++] = (byte) ((value >>> 16) & 0xFF);
-        data[off] = (byte) ((value >>> 24) & 0xFF);
-    }
-
-    private static int readInt(byte[] data, int off) {
-        return data[off + 3] << 24 | (data[off + 2] & 0xFF) << 16 | (data[off + 1] & 0xFF) << 8
-                | data[off] & 0xFF;
+        AXmlAttribute name = application.getAttribute(0x01010003);
+        if (name != null) {
+            customApplication = true;
+            customApplicationName = name.getStringValue();
+        }
+        application.setAttribute(AXmlAttribute.string("http://schemas.android.com/apk/res/android", "name",
+                0x01010003, "cc.binmt.signature.PmsHookApplication"));
+        return axml.toByteArray();
     }
 
     private static byte[] getApkSignatureData(File apkFile) throws Exception {